@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ * 
+ * contact@voidware.com
+ */
+
+package bench;
+
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Whole batches of 1 to a million lines through the streaming entry
+ * points, sequential and parallel, as a large posted request would run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark
+{
+    @Param({ "Factorial", "Change", "Equations" })
+    public String solver;
+
+    @Param({ "1", "1000", "1000000" })
+    public int lines;
+
+    @Param({ "sequential", "parallel" })
+    public String mode;
+
+    private Solver  _solver;
+    private String  _input;
+
+    @Setup
+    public void setup()
+    {
+        _solver = new Solver(solver);
+        _input = Workloads.batch(solver, lines, new Random(Workloads.SEED));
+    }
+
+    @Benchmark
+    public long solve() throws Throwable
+    {
+        Sink out = new Sink();
+        Object s = _solver.create();
+        if (mode.equals("parallel"))
+            _solver.calculateParallel(s, new StringReader(_input), out);
+        else
+            _solver.calculate(s, new StringReader(_input), out);
+        return out._chars;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ * 
+ * contact@voidware.com
+ */
+
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Change for one line at a time, over canonical and non-canonical coin
+ * systems of 2 to 100 coins and amounts from 10^2 to 10^7. Canonical
+ * systems should stay on the greedy engine; the others show how the
+ * dynamic and search engines grow with the amount.
+ *
+ * Each operation solves the next of a few lines with amounts between
+ * half and all of `amount', on one Change as in a long request. The
+ * search keeps its frames on the heap, so it runs on the default stack.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChangeBenchmark
+{
+    private static final int LINES = 16;
+
+    @Param({ "canonical", "noncanonical" })
+    public String system;
+
+    @Param({ "2", "5", "10", "20", "50", "100" })
+    public int coins;
+
+    @Param({ "100", "10000", "1000000", "10000000" })
+    public int amount;
+
+    private Solver    _solver;
+    private Object    _change;
+    private String[]  _lines;
+    private int       _next;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        Random rnd = new Random(Workloads.SEED);
+        int[] c = system.equals("canonical")
+            ? Workloads.canonicalCoins(coins)
+            : Workloads.nonCanonicalCoins(coins, rnd);
+
+        _lines = new String[LINES];
+        for (int i = 0; i < LINES; ++i)
+            _lines[i] = Workloads.coinLine(c, amount/2 + rnd.nextInt(amount/2 + 1), rnd);
+
+        _solver = new Solver("Change");
+        _change = _solver.create();
+    }
+
+    @Benchmark
+    public String solve() throws Throwable
+    {
+        String line = _lines[_next];
+        _next = (_next + 1) % LINES;
+        return _solver.calculate(_change, line);
+    }
+}
@@ -22,40 +22,45 @@
  * contact@voidware.com
  */
 
+package bench;
 
-import javax.servlet.ServletException;
-import javax.servlet.annotation.WebServlet;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
-@WebServlet(name = "Question",
-        urlPatterns = {"/question"},
-        loadOnStartup = 1
-)
+import org.openjdk.jmh.annotations.*;
 
-public class Question extends HttpServlet
+/**
+ * Equations for one set of `size' unknowns, dense or sparse. Sets of
+ * two are pairs in x and y as in the original format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EquationsBenchmark
 {
-    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
-    {
-        this.showAnswer(request, response);
-    }
+    @Param({ "2", "10", "50", "200" })
+    public int size;
 
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    @Param({ "dense", "sparse" })
+    public String structure;
+
+    private Solver  _solver;
+    private String  _input;
+
+    @Setup
+    public void setup()
     {
+        _solver = new Solver("Equations");
+        _input = Workloads.equationSet(size, structure.equals("sparse"),
+                                       new Random(Workloads.SEED)) + "##\n";
     }
 
-    private void showAnswer(HttpServletRequest request,
-                             HttpServletResponse response)
-            throws ServletException, IOException
+    @Benchmark
+    public String solve() throws Throwable
     {
-        String question = request.getParameter("inputdata");
-
-        Factorial f = new Factorial();
-        String answer = f.calculate(question);
-
-        request.setAttribute("value", answer);
-        request.getRequestDispatcher("/WEB-INF/jsp/answer.jsp").forward(request, response);
+        return _solver.calculate(_solver.create(), _input);
     }
 }
@@ -22,40 +22,48 @@
  * contact@voidware.com
  */
 
+package bench;
 
-import javax.servlet.ServletException;
-import javax.servlet.annotation.WebServlet;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
-@WebServlet(name = "Question",
-        urlPatterns = {"/question"},
-        loadOnStartup = 1
-)
+import org.openjdk.jmh.annotations.*;
 
-public class Question extends HttpServlet
+/**
+ * Factorial of a single value from the long table upwards. With
+ * `cached' false the checkpoint store is disabled, so every large
+ * factorial is computed in full. Printing 1000000! takes tens of seconds,
+ * so it is left for an explicit -p n=1000000.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FactorialBenchmark
 {
-    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
-    {
-        this.showAnswer(request, response);
-    }
+    @Param({ "10", "20", "100", "1000", "10000", "100000" })
+    public int n;
 
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    @Param({ "true", "false" })
+    public boolean cached;
+
+    private Solver  _solver;
+    private Object  _factorial;
+    private String  _input;
+
+    @Setup
+    public void setup() throws Throwable
     {
+        _solver = new Solver("Factorial");
+        if (!cached) _solver.invokeStatic("setCacheLimit", 0);
+        _factorial = _solver.create();
+        _input = n + "\n";
     }
 
-    private void showAnswer(HttpServletRequest request,
-                             HttpServletResponse response)
-            throws ServletException, IOException
+    @Benchmark
+    public String solve() throws Throwable
     {
-        String question = request.getParameter("inputdata");
-
-        Equations eq = new Equations();
-        String answer = eq.calculate(question);
-
-        request.setAttribute("value", answer);
-        request.getRequestDispatcher("/WEB-INF/jsp/answer.jsp").forward(request, response);
+        return _solver.calculate(_factorial, _input);
     }
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ * 
+ * contact@voidware.com
+ */
+
+package bench;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Handle on one of the solvers, Factorial, Change or Equations.
+ *
+ * The solvers live in the default package, which cannot be imported from
+ * here, so they are reached through method handles. These cost nothing
+ * noticeable next to a solver call and allocate nothing themselves.
+ */
+public final class Solver
+{
+    private final Class<?>      _class;
+    private final MethodHandle  _new;
+    private final MethodHandle  _calculate;
+    private final MethodHandle  _stream;
+    private final MethodHandle  _parallel;
+
+    public Solver(String name)
+    {
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            _class = Class.forName(name);
+            _new = lookup.findConstructor(_class, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Object.class));
+            _calculate = lookup.findVirtual(_class, "calculate",
+                MethodType.methodType(String.class, String.class))
+                .asType(MethodType.methodType(String.class, Object.class, String.class));
+            MethodType rw = MethodType.methodType(void.class, Reader.class, Writer.class);
+            MethodType orw = MethodType.methodType(void.class, Object.class, Reader.class, Writer.class);
+            _stream = lookup.findVirtual(_class, "calculate", rw).asType(orw);
+            _parallel = lookup.findVirtual(_class, "calculateParallel", rw).asType(orw);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalArgumentException("no solver " + name, e);
+        }
+    }
+
+    public static Solver forModule(String module)
+    {
+        // the solver of module `module', eg vwq2
+        if (module.equals("vwq1")) return new Solver("Factorial");
+        if (module.equals("vwq2")) return new Solver("Change");
+        if (module.equals("vwq3")) return new Solver("Equations");
+        throw new IllegalArgumentException("no module " + module);
+    }
+
+    public void invokeStatic(String method, long arg)
+    {
+        // call a static configuration method such as Factorial.setCacheLimit
+        try
+        {
+            MethodHandles.publicLookup().findStatic(_class, method,
+                MethodType.methodType(void.class, long.class)).invoke(arg);
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException(method, e);
+        }
+    }
+
+    public Object create() throws Throwable
+    {
+        return (Object)_new.invokeExact();
+    }
+
+    public String calculate(Object solver, String input) throws Throwable
+    {
+        return (String)_calculate.invokeExact(solver, input);
+    }
+
+    public void calculate(Object solver, Reader in, Writer out) throws Throwable
+    {
+        _stream.invokeExact(solver, in, out);
+    }
+
+    public void calculateParallel(Object solver, Reader in, Writer out) throws Throwable
+    {
+        _parallel.invokeExact(solver, in, out);
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ * 
+ * contact@voidware.com
+ */
+
+package bench;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inputs for the benchmarks: the doc corpora and generated workloads.
+ * Generated inputs come from a fixed seed so that runs are comparable.
+ */
+public final class Workloads
+{
+    public static final long SEED = 2015;
+
+    private Workloads() {}
+
+    public static String resource(String path) throws IOException
+    {
+        // a doc corpus copied into the jar, eg vwq2/test1.txt
+        InputStream in = Workloads.class.getResourceAsStream("/" + path);
+        if (in == null) throw new FileNotFoundException(path);
+        Reader r = new InputStreamReader(in, "UTF-8");
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[4096];
+        for (int n; (n = r.read(buf)) > 0; ) sb.append(buf, 0, n);
+        r.close();
+        return sb.toString();
+    }
+
+    public static int[] canonicalCoins(int k)
+    {
+        // 1 and multiples of 10. Greedy is optimal for these at any size.
+        int[] coins = new int[k];
+        coins[0] = 1;
+        for (int i = 1; i < k; ++i) coins[i] = 10*i;
+        return coins;
+    }
+
+    public static int[] nonCanonicalCoins(int k, Random rnd)
+    {
+        // random coins up to 10k including a 1, drawn until greedy fails
+        // somewhere. Any pair with a 1 is canonical, so a pair is two
+        // coprime coins without one.
+        if (k == 2)
+        {
+            int a, b;
+            do
+            {
+                a = 2 + rnd.nextInt(19);
+                b = 2 + rnd.nextInt(19);
+            } while (a == b || gcd(a, b) != 1);
+            return new int[] { Math.min(a, b), Math.max(a, b) };
+        }
+
+        for (;;)
+        {
+            List<Integer> set = new ArrayList<Integer>();
+            set.add(1);
+            while (set.size() < k)
+            {
+                int c = 2 + rnd.nextInt(10*k);
+                if (!set.contains(c)) set.add(c);
+            }
+            Collections.sort(set);
+            int[] coins = new int[k];
+            for (int i = 0; i < k; ++i) coins[i] = set.get(i);
+            if (!isCanonical(coins)) return coins;
+        }
+    }
+
+    private static int gcd(int a, int b)
+    {
+        while (b != 0)
+        {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static boolean isCanonical(int[] coins)
+    {
+        // compare greedy with the fewest coins for every value below the
+        // sum of the two largest coins, where any counterexample must lie.
+        // `coins' are ascending and include 1.
+        int k = coins.length;
+        int top = coins[k-1] + coins[k-2];
+        int[] least = new int[top];
+        for (int v = 1; v < top; ++v)
+        {
+            int best = Integer.MAX_VALUE;
+            for (int c : coins)
+                if (c <= v && least[v - c] + 1 < best) best = least[v - c] + 1;
+            least[v] = best;
+
+            int g = 0;
+            int r = v;
+            for (int i = k - 1; i >= 0; --i)
+            {
+                g += r / coins[i];
+                r %= coins[i];
+            }
+            if (g != best) return false;
+        }
+        return true;
+    }
+
+    public static String coinLine(int[] coins, int value, Random rnd)
+    {
+        // input line for `coins' in no particular order and `value'
+        int[] c = coins.clone();
+        for (int i = c.length - 1; i > 0; --i)
+        {
+            int j = rnd.nextInt(i + 1);
+            int t = c[i];
+            c[i] = c[j];
+            c[j] = t;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < c.length; ++i)
+        {
+            if (i > 0) sb.append(',');
+            sb.append(c[i]);
+        }
+        return sb.append(':').append(value).toString();
+    }
+
+    public static String equationSet(int n, boolean sparse, Random rnd)
+    {
+        // `n' equations in `n' unknowns with a small integer solution,
+        // ending with `#'. Dense sets have every coefficient; sparse ones
+        // a dominant diagonal and two more terms per equation.
+        int[] x = new int[n];
+        for (int i = 0; i < n; ++i) x[i] = rnd.nextInt(19) - 9;
+
+        StringBuilder sb = new StringBuilder();
+        long[] row = new long[n];
+        for (int r = 0; r < n; ++r)
+        {
+            Arrays.fill(row, 0);
+            if (sparse)
+            {
+                row[r] = rnd.nextBoolean() ? 10 : -10;
+                for (int t = 0; t < 2; ++t)
+                    row[rnd.nextInt(n)] += 1 + rnd.nextInt(3);
+            }
+            else
+            {
+                for (int i = 0; i < n; ++i) row[i] = rnd.nextInt(19) - 9;
+                if (row[r] == 0) row[r] = 10;
+            }
+
+            long rhs = 0;
+            boolean first = true;
+            for (int i = 0; i < n; ++i)
+            {
+                if (row[i] == 0) continue;
+                if (row[i] > 0 && !first) sb.append('+');
+                sb.append(row[i]).append(name(i, n));
+                rhs += row[i]*x[i];
+                first = false;
+            }
+            sb.append('=').append(rhs).append('\n');
+        }
+        return sb.append("#\n").toString();
+    }
+
+    private static String name(int i, int n)
+    {
+        // pairs use x and y as in the original format
+        if (n == 2) return i == 0 ? "x" : "y";
+        return "x_" + (i + 1);
+    }
+
+    public static String batch(String solver, int lines, Random rnd)
+    {
+        // `lines' lines of typical input for `solver', with its end mark
+        StringBuilder sb = new StringBuilder();
+        if (solver.equals("Factorial"))
+        {
+            for (int i = 0; i < lines; ++i)
+                sb.append(1 + rnd.nextInt(200)).append('\n');
+            sb.append("#\n");
+        }
+        else if (solver.equals("Change"))
+        {
+            int[][] systems =
+            {
+                { 1, 2, 5, 10, 20, 50, 100, 200 },
+                { 1, 3, 4 },
+                { 1, 5, 12, 30, 60 },
+                { 1, 6, 12, 30, 60, 120, 240 },
+            };
+            for (int i = 0; i < lines; ++i)
+                sb.append(coinLine(systems[i % systems.length], 1 + rnd.nextInt(1000), rnd))
+                    .append('\n');
+            sb.append("#\n");
+        }
+        else if (solver.equals("Equations"))
+        {
+            // pairs and their `#', three lines at a time
+            for (int i = 0; i < lines; i += 3)
+                sb.append(equationSet(2, false, rnd));
+            sb.append("##\n");
+        }
+        else throw new IllegalArgumentException("no solver " + solver);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Run a solver over a file from the command line,
+ *
+ *     java -cp classes Batch [-p threads] name input [output]
+ *
+ * where name is the solver's name, eg change, and the output is written
+ * to the standard output if not given. Solver parameters, such as
+ * factorialCacheBytes, are taken from system properties.
+ *
+ * The input is memory mapped in chunks of about CHUNK bytes, each cut at
+ * a record boundary found in the mapped bytes: after a line, or for
+ * solvers whose records run over lines, after their record mark. The
+ * input ends at the solver's end mark, as calculate would end it. Each
+ * chunk is solved by calculate with a solver of its own, so the output
+ * is the same as calculate over the whole file. With -p the chunks are
+ * solved on that many threads and written in order. A chunk's output
+ * beyond SPILL characters waits in a temporary file.
+ */
+public class Batch
+{
+    // bytes of input in a chunk, before cutting it at a record boundary
+    private static final int CHUNK = 64 << 20;
+
+    // give up if a chunk has no record boundary this far past CHUNK
+    private static final int MAX_RECORD = 1 << 30;
+
+    private static final int OUT_BUFFER = 8 << 20;
+
+    // characters of a chunk's output held in memory with -p
+    private static final int SPILL = 4 << 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = 1;
+        int a = 0;
+        if (args.length > 1 && args[0].equals("-p"))
+        {
+            threads = Integer.parseInt(args[1]);
+            a = 2;
+        }
+        if (args.length - a < 2 || args.length - a > 3 || threads < 1)
+        {
+            System.err.println("usage: Batch [-p threads] name input [output]");
+            System.exit(2);
+        }
+
+        Solver solver = solver(args[a]);
+        if (solver == null)
+        {
+            System.err.println("no solver " + args[a]);
+            System.exit(2);
+        }
+
+        FileChannel in = FileChannel.open(Paths.get(args[a + 1]), StandardOpenOption.READ);
+        WritableByteChannel ch = args.length - a > 2
+            ? FileChannel.open(Paths.get(args[a + 2]), StandardOpenOption.CREATE,
+                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+            : new FileOutputStream(FileDescriptor.out).getChannel();
+
+        Writer out = new ChannelWriter(ch, OUT_BUFFER);
+        try
+        {
+            if (threads > 1) runParallel(solver, in, out, threads);
+            else run(solver, in, out);
+        }
+        finally
+        {
+            out.close();
+            in.close();
+        }
+    }
+
+    private static Solver solver(String name)
+    {
+        // find solver `name' and initialise it from system properties.
+        for (Solver s : ServiceLoader.load(Solver.class))
+        {
+            if (s.name().equals(name))
+            {
+                Map<String, String> params = new HashMap<String, String>();
+                for (String k : System.getProperties().stringPropertyNames())
+                    params.put(k, System.getProperty(k));
+                s.init(params);
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private static void run(Solver solver, FileChannel in, Writer out) throws IOException
+    {
+        long size = in.size();
+        for (long p = 0; p < size; )
+        {
+            long q = boundary(solver, in, p + CHUNK, size);
+            Chunk c = new Chunk(solver, in, p, q);
+            solver.create().calculate(c.reader(), out);
+            if (c._ended) break;
+            p = q;
+        }
+    }
+
+    private static void runParallel(Solver solver, FileChannel in, Writer out,
+                                    int threads) throws IOException
+    {
+        // as run, with chunks solved on a pool of `threads'. A bounded
+        // number are in flight, each holding at most SPILL characters of
+        // output in memory, however large the input or its results.
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+        int window = 2*threads;
+
+        try
+        {
+            long size = in.size();
+            boolean ended = false;
+            for (long p = 0; p < size && !ended; )
+            {
+                long q = boundary(solver, in, p + CHUNK, size);
+                if (pending.size() >= window) ended = write(pending.remove(), out);
+                pending.add(pool.submit(task(solver, in, p, q)));
+                p = q;
+            }
+
+            // chunks after the end mark are discarded
+            while (!pending.isEmpty() && !ended) ended = write(pending.remove(), out);
+        }
+        finally
+        {
+            for (Future<Chunk> f : pending) f.cancel(true);
+            pool.shutdownNow();
+            for (Future<Chunk> f : pending) discard(f);
+        }
+    }
+
+    private static Callable<Chunk> task(final Solver solver, final FileChannel in,
+                                        final long p, final long q)
+    {
+        // solve input [p, q) with a solver of its own.
+        return new Callable<Chunk>()
+        {
+            public Chunk call() throws IOException
+            {
+                Chunk c = new Chunk(solver, in, p, q);
+                c._result = new Result();
+                try
+                {
+                    solver.create().calculate(c.reader(), c._result);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    c._result.discard();
+                    throw e;
+                }
+                return c;
+            }
+        };
+    }
+
+    private static boolean write(Future<Chunk> f, Writer out) throws IOException
+    {
+        // wait for a chunk and write its results. true if it ended the input.
+        try
+        {
+            Chunk c = f.get();
+            try
+            {
+                c._result.writeTo(out);
+            }
+            finally
+            {
+                c._result.discard();
+            }
+            return c._ended;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void discard(Future<Chunk> f)
+    {
+        // drop the output of a chunk not written, once it has stopped
+        try
+        {
+            f.get()._result.discard();
+        }
+        catch (Exception e)
+        {
+            // cancelled or failed, and its output already dropped
+        }
+    }
+
+    private static long boundary(Solver solver, FileChannel in, long p, long size) throws IOException
+    {
+        // the first record boundary at or after `p'. That is the start of
+        // a line, or for multi-line records the line after a record mark.
+        if (p >= size) return size;
+
+        // start from the byte before, which ends a line if `p' is at a start
+        long base = p - 1;
+        ByteBuffer b = in.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, MAX_RECORD));
+        int i = lineEnd(b, 0, false);
+        if (i < 0) return base + b.limit();
+
+        byte[] mark = bytes(solver.recordMark());
+        if (mark == null) return base + i;
+
+        while (i < b.limit())
+        {
+            int e = lineEnd(b, i, true);
+            if (startsWith(b, i, mark)) return base + e;
+            i = e;
+        }
+        if (base + b.limit() < size)
+            throw new IOException("no record boundary within " + MAX_RECORD + " bytes of " + p);
+        return size;
+    }
+
+    private static int lineEnd(ByteBuffer b, int i, boolean atStart)
+    {
+        // the start of the line after the one containing b[i], taking a
+        // `\r\n' pair as one. If there is none, the limit when `atStart',
+        // ie for the last line, otherwise -1.
+        int n = b.limit();
+        while (i < n)
+        {
+            byte c = b.get(i++);
+            if (c == '\n') return i;
+            if (c == '\r') return i < n && b.get(i) == '\n' ? i + 1 : i;
+        }
+        return atStart ? n : -1;
+    }
+
+    private static boolean startsWith(ByteBuffer b, int i, byte[] mark)
+    {
+        // does the line at b[i], trimmed as calculate trims, begin with `mark'
+        int n = b.limit();
+        byte c;
+        while (i < n && (c = b.get(i)) != '\n' && c != '\r' && (c & 0xff) <= ' ') ++i;
+        if (n - i < mark.length) return false;
+        for (int j = 0; j < mark.length; ++j)
+            if (b.get(i + j) != mark[j]) return false;
+        return true;
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static final class Chunk
+    {
+        // input [p, q) mapped, cut at the end mark if it has one.
+        final ByteBuffer    _in;
+        final boolean       _ended;
+        Result              _result;
+
+        Chunk(Solver solver, FileChannel in, long p, long q) throws IOException
+        {
+            ByteBuffer b = in.map(FileChannel.MapMode.READ_ONLY, p, q - p);
+            byte[] mark = bytes(solver.endMark());
+            int i = 0;
+            while (i < b.limit() && !startsWith(b, i, mark)) i = lineEnd(b, i, true);
+
+            // keep the end mark for calculate, so it stops there too
+            _ended = i < b.limit();
+            if (_ended) b.limit(lineEnd(b, i, true));
+            _in = b;
+        }
+
+        MappedReader reader()
+        {
+            return new MappedReader(_in);
+        }
+    }
+
+    private static final class Result extends Writer
+    {
+        // output of a chunk, in memory up to SPILL characters and then in
+        // a temporary file.
+        private final CharArrayWriter _mem = new CharArrayWriter(65536);
+        private File    _file;
+        private Writer  _disk;
+
+        public void write(char[] c, int off, int len) throws IOException
+        {
+            if (_disk == null && _mem.size() + len > SPILL)
+            {
+                _file = File.createTempFile("batch", ".out");
+                _file.deleteOnExit();
+                _disk = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(_file), StandardCharsets.UTF_8), 1 << 16);
+                _mem.writeTo(_disk);
+                _mem.reset();
+            }
+            if (_disk != null) _disk.write(c, off, len);
+            else _mem.write(c, off, len);
+        }
+
+        public void flush() throws IOException
+        {
+            if (_disk != null) _disk.flush();
+        }
+
+        public void close() throws IOException
+        {
+            if (_disk != null) _disk.close();
+        }
+
+        void writeTo(Writer out) throws IOException
+        {
+            if (_disk == null)
+            {
+                _mem.writeTo(out);
+                return;
+            }
+            _disk.close();
+            Reader r = new InputStreamReader(new FileInputStream(_file), StandardCharsets.UTF_8);
+            try
+            {
+                char[] buf = new char[1 << 16];
+                int n;
+                while ((n = r.read(buf)) > 0) out.write(buf, 0, n);
+            }
+            finally
+            {
+                r.close();
+            }
+        }
+
+        void discard()
+        {
+            // let go of the output, deleting any file
+            _mem.reset();
+            if (_disk == null) return;
+            try
+            {
+                _disk.close();
+            }
+            catch (IOException e)
+            {
+                // only deleting it
+            }
+            _file.delete();
+            _disk = null;
+        }
+    }
+}
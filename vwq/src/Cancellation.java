@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cancellation of the work of one request, wherever it runs.
+ *
+ * A request's own thread is stopped by interrupting it. Work it hands
+ * to the common pool runs on threads that are never interrupted, so
+ * each task takes the Cancellation current where it was made, enters
+ * it while it runs, and the solvers poll it as they poll for
+ * interrupts. The CPU time of pool threads spent in it is added up, so
+ * that it can be charged to the request.
+ *
+ * A child is cancelled with its parent, and charges to its root.
+ */
+final class Cancellation
+{
+    private static final ThreadLocal<Entry> _current = new ThreadLocal<Entry>();
+    private static final ThreadMXBean _mx = ManagementFactory.getThreadMXBean();
+
+    private final Cancellation _parent;
+    private final AtomicLong   _cpu;
+    private volatile boolean   _cancelled;
+
+    Cancellation()
+    {
+        _parent = null;
+        _cpu = new AtomicLong();
+    }
+
+    private Cancellation(Cancellation parent)
+    {
+        _parent = parent;
+        _cpu = parent._cpu;
+    }
+
+    static Cancellation current()
+    {
+        Entry e = _current.get();
+        return e != null ? e._c : null;
+    }
+
+    static Cancellation child()
+    {
+        // a new cancellation under the current one, if any.
+        Cancellation c = current();
+        return c != null ? new Cancellation(c) : new Cancellation();
+    }
+
+    static boolean cancelled()
+    {
+        // true if the current thread's work has been cancelled. Now and
+        // then the CPU time used so far is charged, so that long tasks
+        // are seen before they end.
+        Entry e = _current.get();
+        if (e == null || e._c == null) return false;
+        if (e._last >= 0 && (++e._polls & 63) == 0) e.charge();
+        return e._c.isCancelled();
+    }
+
+    void cancel()
+    {
+        _cancelled = true;
+    }
+
+    boolean isCancelled()
+    {
+        for (Cancellation c = this; c != null; c = c._parent)
+            if (c._cancelled) return true;
+        return false;
+    }
+
+    long cpuTime()
+    {
+        // nanoseconds of pool thread CPU spent so far
+        return _cpu.get();
+    }
+
+    static Entry enter(Cancellation c)
+    {
+        // make `c' current on this thread until the entry is left.
+        return new Entry(c);
+    }
+
+    static final class Entry
+    {
+        // the work of a cancellation on one thread. Only pool threads
+        // are charged, and only where they switch to it, so that nested
+        // tasks are not counted twice.
+        private final Cancellation _c;
+        private final Entry        _prev;
+        private long               _last;   // CPU time charged up to, or -1
+        private int                _polls;
+
+        private Entry(Cancellation c)
+        {
+            _c = c;
+            _prev = _current.get();
+            _current.set(this);
+            _last = c != null && c != current(_prev)
+                && Thread.currentThread() instanceof ForkJoinWorkerThread
+                && _mx.isCurrentThreadCpuTimeSupported() ? _mx.getCurrentThreadCpuTime() : -1;
+        }
+
+        private static Cancellation current(Entry e)
+        {
+            return e != null ? e._c : null;
+        }
+
+        private void charge()
+        {
+            long now = _mx.getCurrentThreadCpuTime();
+            _c._cpu.addAndGet(now - _last);
+            _last = now;
+        }
+
+        void exit()
+        {
+            if (_last >= 0) charge();
+            _current.set(_prev);
+        }
+    }
+}
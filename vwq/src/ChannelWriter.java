@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer of UTF-8 text to a channel through a direct buffer.
+ *
+ * The channel is written from the buffer itself, so nothing is copied
+ * again on the way out, and only when it fills. ASCII, which is nearly
+ * all solver output, is put in directly; other text is encoded.
+ * Surrogate pairs must not be split across writes, which holds as the
+ * solvers write whole lines.
+ */
+final class ChannelWriter extends Writer
+{
+    private final WritableByteChannel   _out;
+    private final ByteBuffer            _buf;
+    private final CharsetEncoder        _encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    ChannelWriter(WritableByteChannel out, int size)
+    {
+        _out = out;
+        _buf = ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void write(char[] c, int off, int len) throws IOException
+    {
+        int end = off + len;
+        while (off < end)
+        {
+            if (!_buf.hasRemaining()) drain();
+            int n = Math.min(end, off + _buf.remaining());
+            while (off < n && c[off] < 0x80) _buf.put((byte)c[off++]);
+            if (off < n) off = encode(c, off, end);
+        }
+    }
+
+    @Override
+    public void write(String s, int off, int len) throws IOException
+    {
+        int end = off + len;
+        while (off < end)
+        {
+            if (!_buf.hasRemaining()) drain();
+            int n = Math.min(end, off + _buf.remaining());
+            char ch;
+            while (off < n && (ch = s.charAt(off)) < 0x80)
+            {
+                _buf.put((byte)ch);
+                ++off;
+            }
+            if (off < n)
+            {
+                // the rest is not all ASCII, take it as chars
+                write(s.substring(off, end).toCharArray(), 0, end - off);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        if (c < 0x80)
+        {
+            if (!_buf.hasRemaining()) drain();
+            _buf.put((byte)c);
+        }
+        else write(new char[] { (char)c }, 0, 1);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+        _out.close();
+    }
+
+    private int encode(char[] c, int off, int end) throws IOException
+    {
+        // encode c[off..end) up to the next ASCII character, returning
+        // where it stopped.
+        int i = off;
+        while (i < end && c[i] >= 0x80) ++i;
+        CharBuffer in = CharBuffer.wrap(c, off, i - off);
+        for (;;)
+        {
+            CoderResult r = _encoder.encode(in, _buf, true);
+            if (!r.isOverflow()) break;
+            drain();
+        }
+        _encoder.reset();
+        return i;
+    }
+
+    private void drain() throws IOException
+    {
+        _buf.flip();
+        while (_buf.hasRemaining()) _out.write(_buf);
+        _buf.clear();
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Pull parser for JSON text.
+ *
+ * Each call to next returns the next token of the input. The text of a
+ * string, name or number is unescaped into a buffer that is reused for
+ * every token, so reading a document allocates nothing once the buffers
+ * have grown to fit. Malformed input throws IllegalArgumentException.
+ */
+final class JsonReader
+{
+    // tokens
+    static final int END            = 0;
+    static final int BEGIN_ARRAY    = 1;
+    static final int END_ARRAY      = 2;
+    static final int BEGIN_OBJECT   = 3;
+    static final int END_OBJECT     = 4;
+    static final int NAME           = 5;
+    static final int STRING         = 6;
+    static final int NUMBER         = 7;
+    static final int TRUE           = 8;
+    static final int FALSE          = 9;
+    static final int NULL           = 10;
+
+    // what may come next in each open array or object
+    private static final byte ARRAY_FIRST   = 0;
+    private static final byte ARRAY_NEXT    = 1;
+    private static final byte OBJECT_FIRST  = 2;
+    private static final byte OBJECT_NEXT   = 3;
+    private static final byte OBJECT_VALUE  = 4;
+
+    private final Reader    _in;
+
+    // unread input is _buf[_pos.._lim). `_base' chars came before _buf[0]
+    private final char[]    _buf = new char[8192];
+    private int             _pos, _lim;
+    private long            _base;
+
+    // the state of each open array or object, innermost last
+    private byte[]          _stack = new byte[16];
+    private int             _depth;
+    private boolean         _done;
+
+    // text of the last string, name or number is _text[0.._len)
+    private char[]          _text = new char[64];
+    private int             _len;
+
+    JsonReader(Reader in)
+    {
+        _in = in;
+    }
+
+    int next() throws IOException
+    {
+        // return the next token.
+        int c = skipSpace();
+        if (_depth == 0)
+        {
+            if (!_done)
+            {
+                _done = true;
+                return value(c);
+            }
+            if (c >= 0) throw error("unexpected text after the value");
+            return END;
+        }
+
+        switch (_stack[_depth-1])
+        {
+        case ARRAY_FIRST:
+            if (c == ']') return pop(END_ARRAY);
+            _stack[_depth-1] = ARRAY_NEXT;
+            return value(c);
+        case ARRAY_NEXT:
+            if (c == ']') return pop(END_ARRAY);
+            if (c != ',') throw error("expected , or ]");
+            return value(skipSpace());
+        case OBJECT_FIRST:
+            if (c == '}') return pop(END_OBJECT);
+            return name(c);
+        case OBJECT_NEXT:
+            if (c == '}') return pop(END_OBJECT);
+            if (c != ',') throw error("expected , or }");
+            return name(skipSpace());
+        default:
+            if (c != ':') throw error("expected :");
+            _stack[_depth-1] = OBJECT_NEXT;
+            return value(skipSpace());
+        }
+    }
+
+    void skip(int token) throws IOException
+    {
+        // skip the rest of the value that began with `token'.
+        if (token != BEGIN_ARRAY && token != BEGIN_OBJECT) return;
+        int depth = _depth;
+        while (_depth >= depth) next();
+    }
+
+    char[] text()
+    {
+        // the text of the last string, name or number, up to length().
+        // Good until the next token.
+        return _text;
+    }
+
+    int length()
+    {
+        return _len;
+    }
+
+    boolean textIs(String s)
+    {
+        // true if the last string or name is `s'.
+        if (s.length() != _len) return false;
+        for (int i = 0; i < _len; ++i)
+            if (s.charAt(i) != _text[i]) return false;
+        return true;
+    }
+
+    long longValue()
+    {
+        // the last number as a long. Throws NumberFormatException if it
+        // has a fraction or exponent or does not fit.
+        int i = 0;
+        boolean neg = _text[0] == '-';
+        if (neg) ++i;
+        long v = 0;
+        for (; i < _len; ++i)
+        {
+            int d = _text[i] - '0';
+            if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d)/10)
+                throw new NumberFormatException("not an integer: " + new String(_text, 0, _len));
+            v = v*10 + d;
+        }
+        return neg ? -v : v;
+    }
+
+    int intValue()
+    {
+        long v = longValue();
+        if (v != (int)v)
+            throw new NumberFormatException("number too big: " + new String(_text, 0, _len));
+        return (int)v;
+    }
+
+    IllegalArgumentException error(String what)
+    {
+        // report malformed input at the current position.
+        return new IllegalArgumentException("malformed JSON at " + (_base + _pos) + ": " + what);
+    }
+
+    private int pop(int token)
+    {
+        --_depth;
+        return token;
+    }
+
+    private void push(byte state)
+    {
+        if (_depth == _stack.length) _stack = Arrays.copyOf(_stack, 2*_depth);
+        _stack[_depth++] = state;
+    }
+
+    private int name(int c) throws IOException
+    {
+        if (c != '"') throw error("expected a name");
+        string();
+        _stack[_depth-1] = OBJECT_VALUE;
+        return NAME;
+    }
+
+    private int value(int c) throws IOException
+    {
+        // read the value starting with `c', already consumed.
+        switch (c)
+        {
+        case '[':
+            push(ARRAY_FIRST);
+            return BEGIN_ARRAY;
+        case '{':
+            push(OBJECT_FIRST);
+            return BEGIN_OBJECT;
+        case '"':
+            string();
+            return STRING;
+        case 't':
+            literal("rue");
+            return TRUE;
+        case 'f':
+            literal("alse");
+            return FALSE;
+        case 'n':
+            literal("ull");
+            return NULL;
+        default:
+            if (c == '-' || (c >= '0' && c <= '9'))
+            {
+                number(c);
+                return NUMBER;
+            }
+            throw error(c < 0 ? "unexpected end of input" : "expected a value");
+        }
+    }
+
+    private void literal(String rest) throws IOException
+    {
+        for (int i = 0; i < rest.length(); ++i)
+            if (read() != rest.charAt(i)) throw error("expected a value");
+    }
+
+    private void number(int c) throws IOException
+    {
+        // read a number into `_text', checking its form:
+        // -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][-+]?[0-9]+)?
+        _len = 0;
+        if (c == '-') c = add(c);
+        if (c == '0') c = add(c);
+        else if (c >= '1' && c <= '9') c = digits(c);
+        else throw error("malformed number");
+
+        if (c == '.')
+        {
+            c = add(c);
+            if (c < '0' || c > '9') throw error("malformed number");
+            c = digits(c);
+        }
+        if (c == 'e' || c == 'E')
+        {
+            c = add(c);
+            if (c == '-' || c == '+') c = add(c);
+            if (c < '0' || c > '9') throw error("malformed number");
+            c = digits(c);
+        }
+        if (c >= 0) --_pos; // not part of the number
+    }
+
+    private int digits(int c) throws IOException
+    {
+        // add the run of digits starting with `c' and return what follows
+        while (c >= '0' && c <= '9') c = add(c);
+        return c;
+    }
+
+    private int add(int c) throws IOException
+    {
+        // append `c' to the text and return the next input char
+        if (_len == _text.length) _text = Arrays.copyOf(_text, 2*_len);
+        _text[_len++] = (char)c;
+        return read();
+    }
+
+    private void string() throws IOException
+    {
+        // read the rest of a string into `_text', unescaped. Runs without
+        // escapes are copied straight from the input buffer.
+        _len = 0;
+        for (;;)
+        {
+            int p = _pos;
+            while (p < _lim && _buf[p] != '"' && _buf[p] != '\\' && _buf[p] >= ' ') ++p;
+            int n = p - _pos;
+            if (_len + n > _text.length) _text = Arrays.copyOf(_text, Math.max(_len + n, 2*_text.length));
+            System.arraycopy(_buf, _pos, _text, _len, n);
+            _len += n;
+            _pos = p;
+
+            // the run ends at a quote, an escape, a control char or the
+            // end of the buffer
+            int c = read();
+            if (c == '"') return;
+            if (c == '\\')
+            {
+                c = read();
+                switch (c)
+                {
+                case '"':
+                case '\\':
+                case '/':
+                    break;
+                case 'b': c = '\b'; break;
+                case 'f': c = '\f'; break;
+                case 'n': c = '\n'; break;
+                case 'r': c = '\r'; break;
+                case 't': c = '\t'; break;
+                case 'u':
+                    c = 0;
+                    for (int i = 0; i < 4; ++i)
+                    {
+                        int d = Character.digit(read(), 16);
+                        if (d < 0) throw error("malformed escape");
+                        c = c*16 + d;
+                    }
+                    break;
+                default:
+                    throw error("malformed escape");
+                }
+            }
+            else if (c < 0) throw error("unterminated string");
+            else if (c < ' ') throw error("control character in string");
+            if (_len == _text.length) _text = Arrays.copyOf(_text, 2*_len);
+            _text[_len++] = (char)c;
+        }
+    }
+
+    private int skipSpace() throws IOException
+    {
+        // return the next char that is not white space, or -1 at the end
+        int c;
+        do c = read(); while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int read() throws IOException
+    {
+        // return the next input char, or -1 at the end.
+        if (_pos == _lim)
+        {
+            _base += _lim;
+            _pos = _lim = 0;
+            int r;
+            do r = _in.read(_buf, 0, _buf.length); while (r == 0);
+            if (r < 0) return -1;
+            _lim = r;
+        }
+        return _buf[_pos++];
+    }
+}
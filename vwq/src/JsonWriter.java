@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming writer of JSON text.
+ *
+ * Output is gathered in a buffer and passed on when it fills, so writing
+ * a document allocates nothing beyond the buffer. Commas are put in as
+ * needed. As a Writer in its own right it takes raw text, which is how
+ * solvers write large numbers straight into the output after rawValue.
+ */
+final class JsonWriter extends Writer
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer    _out;
+    private final char[]    _buf = new char[8192];
+    private int             _n;
+
+    // room for the digits of a long
+    private final char[]    _digits = new char[20];
+
+    // a value has been written in the current array or object
+    private boolean         _comma;
+
+    JsonWriter(Writer out)
+    {
+        _out = out;
+    }
+
+    void beginArray() throws IOException
+    {
+        separate();
+        put('[');
+        _comma = false;
+    }
+
+    void endArray() throws IOException
+    {
+        put(']');
+        _comma = true;
+    }
+
+    void beginObject() throws IOException
+    {
+        separate();
+        put('{');
+        _comma = false;
+    }
+
+    void endObject() throws IOException
+    {
+        put('}');
+        _comma = true;
+    }
+
+    void name(String name) throws IOException
+    {
+        separate();
+        quote(name);
+        put(':');
+        _comma = false;
+    }
+
+    void value(long v) throws IOException
+    {
+        // the digits are made backwards in `_digits', as Long.toString
+        // would but without making a string.
+        separate();
+        int p = _digits.length;
+        boolean neg = v < 0;
+        do
+        {
+            _digits[--p] = (char)('0' + Math.abs(v % 10));
+            v /= 10;
+        }
+        while (v != 0);
+        if (neg) _digits[--p] = '-';
+        write(_digits, p, _digits.length - p);
+    }
+
+    void value(String s) throws IOException
+    {
+        separate();
+        quote(s);
+    }
+
+    void value(char[] c, int s, int e) throws IOException
+    {
+        // the string c[s..e)
+        separate();
+        quote(c, s, e);
+    }
+
+    void nullValue() throws IOException
+    {
+        separate();
+        write("null");
+    }
+
+    Writer rawValue() throws IOException
+    {
+        // begin a value that the caller writes as raw text, eg a number.
+        separate();
+        return this;
+    }
+
+    void error(String message) throws IOException
+    {
+        // write an error result, {"error":message}
+        beginObject();
+        name("error");
+        value(message);
+        endObject();
+    }
+
+    public void write(char[] c, int off, int len) throws IOException
+    {
+        if (len > _buf.length - _n)
+        {
+            drain();
+            if (len > _buf.length)
+            {
+                _out.write(c, off, len);
+                return;
+            }
+        }
+        System.arraycopy(c, off, _buf, _n, len);
+        _n += len;
+    }
+
+    public void write(String s, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (_n == _buf.length) drain();
+            int k = Math.min(len, _buf.length - _n);
+            s.getChars(off, off + k, _buf, _n);
+            _n += k;
+            off += k;
+            len -= k;
+        }
+    }
+
+    public void write(int c) throws IOException
+    {
+        put((char)c);
+    }
+
+    public void flush() throws IOException
+    {
+        drain();
+        _out.flush();
+    }
+
+    public void close() throws IOException
+    {
+        drain();
+        _out.close();
+    }
+
+    private void separate() throws IOException
+    {
+        if (_comma) put(',');
+        _comma = true;
+    }
+
+    private void put(char c) throws IOException
+    {
+        if (_n == _buf.length) drain();
+        _buf[_n++] = c;
+    }
+
+    private void drain() throws IOException
+    {
+        _out.write(_buf, 0, _n);
+        _n = 0;
+    }
+
+    private void quote(String s) throws IOException
+    {
+        put('"');
+        for (int i = 0; i < s.length(); ++i) escape(s.charAt(i));
+        put('"');
+    }
+
+    private void quote(char[] c, int s, int e) throws IOException
+    {
+        put('"');
+        for (int i = s; i < e; ++i) escape(c[i]);
+        put('"');
+    }
+
+    private void escape(char c) throws IOException
+    {
+        switch (c)
+        {
+        case '"':  put('\\'); put('"'); break;
+        case '\\': put('\\'); put('\\'); break;
+        case '\n': put('\\'); put('n'); break;
+        case '\r': put('\\'); put('r'); break;
+        case '\t': put('\\'); put('t'); break;
+        default:
+            if (c < ' ')
+            {
+                put('\\'); put('u'); put('0'); put('0');
+                put(HEX[c >> 4]); put(HEX[c & 15]);
+            }
+            else put(c);
+        }
+    }
+}
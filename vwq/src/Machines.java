@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ * 
+ * contact@voidware.com
+ */
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@WebServlet(name = "Machines",
+        urlPatterns = {"/machine"}
+)
+
+public class Machines extends HttpServlet
+{
+    // coin inventories of ticket machines.
+    //
+    //   GET  /machine?id=m                     the stock of m, eg 100*5,50*2
+    //   POST /machine?id=m&op=create&coins=100*5,50*2,20*0[&max=2000]
+    //   POST /machine?id=m&op=insert&coins=50*2
+    //   POST /machine?id=m&op=dispense&value=70  change, eg 50x1,20x1
+    //   POST /machine?id=m&op=remove
+    //
+    // change that the stock cannot make is refused with 409, leaving the
+    // stock as it was. Creates and dispenses beyond the machines' memory
+    // are refused with 503.
+
+    // largest change a machine gives unless created with `max'
+    private static final int DEFAULT_MAX = 10000;
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        Machine m = machine(request, response);
+        if (m != null) reply(response, m.inventory());
+    }
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        String op = request.getParameter("op");
+        String id = request.getParameter("id");
+        try
+        {
+            if (id == null || op == null)
+            {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "id and op required");
+            }
+            else if (op.equals("create"))
+            {
+                String max = request.getParameter("max");
+                Machine m = Machine.create(id, param(request, "coins"),
+                                           max == null ? DEFAULT_MAX : Integer.parseInt(max));
+                reply(response, m.inventory());
+            }
+            else if (op.equals("remove"))
+            {
+                if (Machine.remove(id)) reply(response, "");
+                else response.sendError(HttpServletResponse.SC_NOT_FOUND, "no machine " + id);
+            }
+            else if (op.equals("insert"))
+            {
+                Machine m = machine(request, response);
+                if (m == null) return;
+                m.insert(param(request, "coins"));
+                reply(response, m.inventory());
+            }
+            else if (op.equals("dispense"))
+            {
+                Machine m = machine(request, response);
+                if (m == null) return;
+                String value = param(request, "value");
+                String change = m.dispense(Integer.parseInt(value.trim()));
+                if (change != null) reply(response, change);
+                else response.sendError(HttpServletResponse.SC_CONFLICT, value + " has no solution");
+            }
+            else response.sendError(HttpServletResponse.SC_BAD_REQUEST, "unknown op: " + op);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // includes malformed numbers
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+        catch (IllegalStateException e)
+        {
+            // too many machines or out of memory for them
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    private static String param(HttpServletRequest request, String name)
+    {
+        String v = request.getParameter(name);
+        if (v == null) throw new IllegalArgumentException(name + " required");
+        return v;
+    }
+
+    private static Machine machine(HttpServletRequest request,
+                                   HttpServletResponse response) throws IOException
+    {
+        // the machine named by `id', or null having sent an error.
+        String id = request.getParameter("id");
+        Machine m = id == null ? null : Machine.get(id);
+        if (m == null)
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "no machine " + id);
+        return m;
+    }
+
+    private static void reply(HttpServletResponse response, String text) throws IOException
+    {
+        response.setContentType("text/plain;charset=UTF-8");
+        response.getWriter().write(text);
+        response.getWriter().write('\n');
+    }
+}
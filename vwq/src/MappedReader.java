@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of UTF-8 text held in a ByteBuffer, usually a mapped file.
+ *
+ * The bytes are copied from the buffer in blocks and decoded from there,
+ * as the decoder is much faster on an array than on a direct buffer.
+ * Malformed input is replaced, as InputStreamReader would.
+ */
+final class MappedReader extends Reader
+{
+    private final ByteBuffer        _in;
+    private final ByteBuffer        _bytes = ByteBuffer.allocate(65536);
+    private final CharsetDecoder    _decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private boolean                 _eof;
+
+    MappedReader(ByteBuffer in)
+    {
+        _in = in;
+        _bytes.flip();
+    }
+
+    @Override
+    public int read(char[] c, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        if (_eof) return -1;
+
+        CharBuffer out = CharBuffer.wrap(c, off, len);
+        while (out.position() == off)
+        {
+            // less than a whole character is left, get some more
+            if (_bytes.remaining() < 4 && !fill())
+            {
+                _decoder.decode(_bytes, out, true);
+                _decoder.flush(out);
+                _eof = true;
+                break;
+            }
+            _decoder.decode(_bytes, out, false);
+        }
+        int n = out.position() - off;
+        return n > 0 ? n : -1;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    private boolean fill()
+    {
+        // move the next block of input into `_bytes', after what is left
+        // of the last. false when there is no more.
+        if (!_in.hasRemaining()) return false;
+        _bytes.compact();
+        int n = Math.min(_bytes.remaining(), _in.remaining());
+        _in.get(_bytes.array(), _bytes.position(), n);
+        _bytes.position(_bytes.position() + n);
+        _bytes.flip();
+        return true;
+    }
+}
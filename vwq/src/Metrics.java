@@ -22,40 +22,25 @@
  * contact@voidware.com
  */
 
-
-import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
-@WebServlet(name = "Question",
-        urlPatterns = {"/question"},
-        loadOnStartup = 1
+@WebServlet(name = "Metrics",
+        urlPatterns = {"/metrics"}
 )
 
-public class Question extends HttpServlet
+public class Metrics extends HttpServlet
 {
-    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
-    {
-        this.showAnswer(request, response);
-    }
-
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
-    {
-    }
+    // solver statistics in the Prometheus text format
 
-    private void showAnswer(HttpServletRequest request,
-                             HttpServletResponse response)
-            throws ServletException, IOException
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
     {
-        String question = request.getParameter("inputdata");
-
-        Change ch = new Change();
-        String answer = ch.calculate(question);
-
-        request.setAttribute("value", answer);
-        request.getRequestDispatcher("/WEB-INF/jsp/answer.jsp").forward(request, response);
+        response.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+        StringBuilder sb = new StringBuilder(Change.metrics());
+        ResultCache.metrics(sb);
+        response.getWriter().write(sb.toString());
     }
 }
@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writer of UTF-8 text into pooled byte chunks.
+ *
+ * Text is encoded as it is written, so an answer is held once, as
+ * bytes, and handed to the response by writeTo without being made into
+ * a string. Line ends are counted on the way in. Chunks come from a
+ * pool shared by every buffer and go back to it on release, so that
+ * large answers do not each leave megabytes for the collector.
+ */
+final class OutputBuffer extends Writer
+{
+    // size of a chunk, and the most kept in the pool
+    static final int CHUNK = 1 << 15;
+    static final int POOL_CHUNKS = 512;
+
+    private static final ArrayBlockingQueue<byte[]> _pool =
+        new ArrayBlockingQueue<byte[]>(POOL_CHUNKS);
+
+    // full chunks, then the current one filled to `_pos'
+    private final List<byte[]> _chunks = new ArrayList<byte[]>();
+    private byte[] _cur;
+    private int    _pos;
+
+    // line ends written, and a high surrogate waiting for its pair
+    private int    _lines;
+    private char   _high;
+
+    @Override
+    public void write(char[] c, int off, int len)
+    {
+        for (int i = off, e = off + len; i < e; )
+        {
+            // ASCII, which is nearly all solver output, straight in
+            if (_cur == null || _pos == CHUNK) next();
+            byte[] b = _cur;
+            int p = _pos;
+            int n = Math.min(e - i, CHUNK - p);
+            char ch;
+            while (n > 0 && _high == 0 && (ch = c[i]) < 0x80)
+            {
+                if (ch == '\n') ++_lines;
+                b[p++] = (byte)ch;
+                ++i;
+                --n;
+            }
+            _pos = p;
+            if (n > 0) encode(c[i++]);
+        }
+    }
+
+    @Override
+    public void write(int c)
+    {
+        encode((char)c);
+    }
+
+    @Override
+    public void write(String s, int off, int len)
+    {
+        // without the copy Writer makes
+        for (int i = off, e = off + len; i < e; ++i) encode(s.charAt(i));
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    int lines()
+    {
+        // line ends written so far
+        return _lines;
+    }
+
+    long size()
+    {
+        // bytes written so far
+        return (long)_chunks.size()*CHUNK + _pos;
+    }
+
+    void writeTo(OutputStream out) throws IOException
+    {
+        // a surrogate left unpaired at the end
+        if (_high != 0)
+        {
+            _high = 0;
+            put('?');
+        }
+        for (byte[] b : _chunks) out.write(b, 0, CHUNK);
+        if (_cur != null) out.write(_cur, 0, _pos);
+    }
+
+    void release()
+    {
+        // give the chunks back to the pool and empty the buffer.
+        for (byte[] b : _chunks) _pool.offer(b);
+        if (_cur != null) _pool.offer(_cur);
+        _chunks.clear();
+        _cur = null;
+        _pos = 0;
+        _lines = 0;
+        _high = 0;
+    }
+
+    private void next()
+    {
+        // start a new chunk
+        if (_cur != null) _chunks.add(_cur);
+        _cur = _pool.poll();
+        if (_cur == null) _cur = new byte[CHUNK];
+        _pos = 0;
+    }
+
+    private void encode(char c)
+    {
+        // add one char as UTF-8. Unpaired surrogates become `?', as
+        // the standard encoder would have it.
+        if (_high != 0)
+        {
+            char h = _high;
+            _high = 0;
+            if (Character.isLowSurrogate(c))
+            {
+                int cp = Character.toCodePoint(h, c);
+                put(0xf0 | (cp >>> 18));
+                put(0x80 | ((cp >>> 12) & 0x3f));
+                put(0x80 | ((cp >>> 6) & 0x3f));
+                put(0x80 | (cp & 0x3f));
+                return;
+            }
+            put('?');
+        }
+
+        if (c < 0x80)
+        {
+            if (c == '\n') ++_lines;
+            put(c);
+        }
+        else if (c < 0x800)
+        {
+            put(0xc0 | (c >>> 6));
+            put(0x80 | (c & 0x3f));
+        }
+        else if (Character.isHighSurrogate(c)) _high = c;
+        else if (Character.isLowSurrogate(c)) put('?');
+        else
+        {
+            put(0xe0 | (c >>> 12));
+            put(0x80 | ((c >>> 6) & 0x3f));
+            put(0x80 | (c & 0x3f));
+        }
+    }
+
+    private void put(int b)
+    {
+        if (_cur == null || _pos == CHUNK) next();
+        _cur[_pos++] = (byte)b;
+    }
+}
@@ -0,0 +1,502 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ * 
+ * contact@voidware.com
+ */
+
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@WebServlet(name = "Question",
+        urlPatterns = {"/question/*", "/api/solve/*"},
+        loadOnStartup = 1,
+        asyncSupported = true
+)
+
+public class Question extends HttpServlet
+{
+    // inputs longer than this are solved in parallel
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    // questions are solved on a pool of their own rather than on the
+    // container's threads. At most QUEUE_LIMIT may wait for it; more are
+    // turned away with 503 so that clients back off instead of piling up.
+    private static final int QUEUE_LIMIT = 64;
+
+    // CPU time one question may use before it is stopped, and how often
+    // the running questions are checked.
+    private static final long CPU_BUDGET_MS = 10000;
+    private static final long WATCH_MS = 100;
+
+    private ThreadPoolExecutor _pool;
+    private ScheduledExecutorService _watchdog;
+    private final Set<Job> _running = ConcurrentHashMap.<Job>newKeySet();
+    private long _budget;
+    private boolean _cpuTime;
+
+    // the solvers found, by name
+    private final Map<String, Solver> _solvers = new LinkedHashMap<String, Solver>();
+
+    public void init() throws ServletException
+    {
+        // find the solvers and set them up from the context parameters.
+        // The index page lists them by name and title.
+        Map<String, String> params = new HashMap<String, String>();
+        Enumeration<String> names = getServletContext().getInitParameterNames();
+        while (names.hasMoreElements())
+        {
+            String name = names.nextElement();
+            params.put(name, getServletContext().getInitParameter(name));
+        }
+        Map<String, String> questions = new LinkedHashMap<String, String>();
+        for (Solver s : ServiceLoader.load(Solver.class))
+        {
+            s.init(params);
+            _solvers.put(s.name(), s);
+            questions.put(s.name(), s.title());
+        }
+        getServletContext().setAttribute("questions", questions);
+
+        // the pool, its queue and the budget can be set from context
+        // parameters `questionThreads', `questionQueue' and
+        // `questionCpuMillis'.
+        int threads = intParam("questionThreads", Runtime.getRuntime().availableProcessors());
+        int queue = intParam("questionQueue", QUEUE_LIMIT);
+        _budget = TimeUnit.MILLISECONDS.toNanos(intParam("questionCpuMillis", (int)CPU_BUDGET_MS));
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        _cpuTime = mx.isThreadCpuTimeSupported() && mx.isThreadCpuTimeEnabled();
+
+        _pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                       new ArrayBlockingQueue<Runnable>(queue),
+                                       daemons("question"));
+        _watchdog = Executors.newSingleThreadScheduledExecutor(daemons("question-watchdog"));
+        _watchdog.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                watch();
+            }
+        }, WATCH_MS, WATCH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy()
+    {
+        _watchdog.shutdownNow();
+        _pool.shutdownNow();
+    }
+
+    private int intParam(String name, int def)
+    {
+        String v = getServletContext().getInitParameter(name);
+        return v != null ? Integer.parseInt(v.trim()) : def;
+    }
+
+    private static ThreadFactory daemons(final String name)
+    {
+        // threads that do not keep the container from shutting down.
+        return new ThreadFactory()
+        {
+            private final AtomicInteger _n = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name + "-" + _n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private long cpuTime(Thread t)
+    {
+        // CPU time used by `t' so far, or the wall clock if the JVM cannot
+        // measure it.
+        if (_cpuTime)
+        {
+            long ns = ManagementFactory.getThreadMXBean().getThreadCpuTime(t.getId());
+            if (ns >= 0) return ns;
+        }
+        return System.nanoTime();
+    }
+
+    private void watch()
+    {
+        // stop any question that has used up its budget.
+        for (Job job : _running)
+        {
+            if (job.used() > _budget)
+            {
+                job._overBudget = true;
+                job.cancel();
+            }
+        }
+    }
+
+    private Solver solver(HttpServletRequest request, HttpServletResponse response)
+            throws IOException
+    {
+        // the solver named by the path, eg /question/change, or null
+        // having sent an error.
+        String path = request.getPathInfo();
+        Solver s = path == null ? null : _solvers.get(path.substring(1));
+        if (s == null)
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "no question " + path);
+        return s;
+    }
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    {
+        Solver solver = solver(request, response);
+        if (solver == null) return;
+
+        // hand the question to the pool and free the container thread.
+        AsyncContext ac = request.startAsync();
+        ac.setTimeout(0); // the CPU budget limits the time taken instead
+        Job job = new Job(ac, solver);
+        ac.addListener(job);
+        try
+        {
+            job._future = _pool.submit(job);
+        }
+        catch (RejectedExecutionException e)
+        {
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too busy");
+            ac.complete();
+        }
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    {
+        // the input page of a question
+        if (isJson(request))
+        {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "POST records to solve");
+            return;
+        }
+        Solver solver = solver(request, response);
+        if (solver == null) return;
+        setTitle(request, solver);
+        request.getRequestDispatcher("/WEB-INF/jsp/input.jsp").forward(request, response);
+    }
+
+    private final class Job implements Runnable, AsyncListener
+    {
+        // one question, solved on the pool. The job is stopped by
+        // interrupting its thread, which the solver notices between lines
+        // and at points within long searches, and by cancelling
+        // `_cancel', which stops the work it has handed to the common
+        // pool. That work's CPU time is charged to the job too.
+        private final AsyncContext _ac;
+        private final Solver _solver;
+        private final Cancellation _cancel = new Cancellation();
+        private volatile Future<?> _future;
+        private volatile Thread _thread;
+        private volatile long _start;
+        private volatile boolean _cancelled;
+        private volatile boolean _overBudget;
+
+        Job(AsyncContext ac, Solver solver)
+        {
+            _ac = ac;
+            _solver = solver;
+        }
+
+        long used()
+        {
+            Thread t = _thread;
+            return t != null ? cpuTime(t) - _start + _cancel.cpuTime() : 0;
+        }
+
+        void cancel()
+        {
+            _cancelled = true;
+            _cancel.cancel();
+            Future<?> f = _future;
+            if (f != null) f.cancel(true);
+        }
+
+        public void run()
+        {
+            _start = cpuTime(Thread.currentThread());
+            _thread = Thread.currentThread();
+            _running.add(this);
+            Cancellation.Entry entry = Cancellation.enter(_cancel);
+            try
+            {
+                // the client may have gone while the question was queued
+                if (!_cancelled) showAnswer(_ac, _solver);
+            }
+            catch (CancellationException e)
+            {
+                // out of time or no one to answer
+            }
+            catch (IOException e)
+            {
+                // the client has gone
+            }
+            catch (Exception e)
+            {
+                log("question failed", e);
+                fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
+            }
+            finally
+            {
+                entry.exit();
+                _running.remove(this);
+                _thread = null;
+
+                // do not leave an interrupt for the pool's next job
+                Thread.interrupted();
+            }
+
+            if (_overBudget)
+                fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "out of time");
+            try
+            {
+                _ac.complete();
+            }
+            catch (IllegalStateException e)
+            {
+                // already completed, eg by an error
+            }
+        }
+
+        private void fail(int status, String message)
+        {
+            HttpServletResponse response = (HttpServletResponse)_ac.getResponse();
+            try
+            {
+                if (!response.isCommitted()) response.sendError(status, message);
+            }
+            catch (Exception e)
+            {
+                // nothing more can be said to the client
+            }
+        }
+
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+
+        public void onComplete(AsyncEvent event)
+        {
+        }
+
+        public void onTimeout(AsyncEvent event)
+        {
+            cancel();
+        }
+
+        public void onError(AsyncEvent event)
+        {
+            // eg the client has disconnected
+            cancel();
+        }
+    }
+
+    private static void setTitle(HttpServletRequest request, Solver solver)
+    {
+        // the pages show the question's title and link to its name
+        request.setAttribute("name", solver.name());
+        request.setAttribute("title", solver.title());
+    }
+
+    private void showAnswer(AsyncContext ac, Solver solver) throws IOException
+    {
+        // answer the question with a new solver of the kind given.
+        HttpServletRequest request = (HttpServletRequest)ac.getRequest();
+        HttpServletResponse response = (HttpServletResponse)ac.getResponse();
+        Solver s = solver.create();
+        if (isJson(request))
+        {
+            jsonAnswer(request, response, s);
+            return;
+        }
+        if (isStreaming(request))
+        {
+            streamAnswer(request, response, s);
+            return;
+        }
+
+        String question = request.getParameter("inputdata");
+
+        StringBuilder trace = trace(request, s);
+        OutputBuffer out = new OutputBuffer();
+        try
+        {
+            if (trace == null && question.length() > PARALLEL_THRESHOLD)
+                s.calculateParallel(new StringReader(question), out);
+            else
+                s.calculate(new StringReader(question), out);
+            logTrace(trace);
+            answerPage(response, solver, out);
+        }
+        finally
+        {
+            out.release();
+        }
+    }
+
+    private static void answerPage(HttpServletResponse response, Solver solver,
+                                   OutputBuffer answer) throws IOException
+    {
+        // the results page, with the answer as UTF-8 straight from
+        // `answer' in a text area of a row per line, and at least 10.
+        int rows = Math.max(answer.lines() + 1, 10);
+        response.setContentType("text/html;charset=UTF-8");
+        OutputStream out = response.getOutputStream();
+        out.write(("<html>\n<head>\n"
+                   + "  <link rel=\"stylesheet\" type=\"text/css\" href=\"/style.css\">\n"
+                   + "  <title>Bluemix " + solver.title() + "</title>\n"
+                   + "</head>\n<body>\n\n"
+                   + "<h1>" + solver.title() + " Results</h1>\n\n"
+                   + "<textarea cols='80' rows='" + rows + "'>").getBytes(StandardCharsets.UTF_8));
+        answer.writeTo(out);
+        out.write(("</textarea>\n\n<br/>\n"
+                   + "<a href=\"/question/" + solver.name() + "\">Back</a>\n"
+                   + "</body>\n</html>\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static StringBuilder trace(HttpServletRequest request, Solver s)
+    {
+        // requests with a `trace' parameter, eg /question/change?trace,
+        // have each line's working written to the log. Traced requests
+        // are solved sequentially.
+        if (request.getParameter("trace") == null) return null;
+        StringBuilder trace = new StringBuilder();
+        s.setTrace(trace);
+        return trace;
+    }
+
+    private void logTrace(StringBuilder trace)
+    {
+        if (trace != null && trace.length() > 0) log("trace\n" + trace);
+    }
+
+    private static boolean isJson(HttpServletRequest request)
+    {
+        // posts to /api/solve/{name} are JSON arrays of records.
+        return "/api/solve".equals(request.getServletPath());
+    }
+
+    private void jsonAnswer(HttpServletRequest request,
+                            HttpServletResponse response, Solver s)
+            throws IOException
+    {
+        // solve a JSON array of records from the request body, writing a
+        // JSON array with the result of each as it is solved. Failures
+        // are objects {"error":message}. Malformed JSON ends the array
+        // with such an error.
+        if (request.getCharacterEncoding() == null)
+            request.setCharacterEncoding("UTF-8");
+        JsonReader in = new JsonReader(request.getReader());
+        try
+        {
+            if (in.next() != JsonReader.BEGIN_ARRAY)
+                throw in.error("expected an array of records");
+        }
+        catch (IllegalArgumentException e)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        response.setContentType("application/json;charset=UTF-8");
+        JsonWriter out = new JsonWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        out.beginArray();
+        try
+        {
+            int t;
+            while ((t = in.next()) != JsonReader.END_ARRAY) s.solve(in, t, out);
+            in.next(); // nothing may follow
+        }
+        catch (IllegalArgumentException e)
+        {
+            out.error(e.getMessage());
+        }
+        out.endArray();
+        out.flush();
+    }
+
+    private static boolean isStreaming(HttpServletRequest request)
+    {
+        // plain text bodies are the raw input data rather than a form.
+        String type = request.getContentType();
+        return type != null && type.startsWith("text/plain");
+    }
+
+    private void streamAnswer(HttpServletRequest request,
+                              HttpServletResponse response, Solver s)
+            throws IOException
+    {
+        // solve the request body line by line, writing each result
+        // straight back to the client. Memory use stays constant
+        // however large the input. Writing to a client that has gone
+        // fails, which ends the job.
+        if (request.getCharacterEncoding() == null)
+            request.setCharacterEncoding("UTF-8");
+        response.setContentType("text/plain;charset=UTF-8");
+        Writer out = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+
+        StringBuilder trace = trace(request, s);
+        if (trace == null && request.getContentLength() > PARALLEL_THRESHOLD)
+            s.calculateParallel(request.getReader(), out);
+        else
+            s.calculate(request.getReader(), out);
+        logTrace(trace);
+        out.flush();
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of solver results by record text.
+ *
+ * Records are keyed by their text with surrounding white space removed
+ * and runs of it taken as one space. The text is kept and compared, and
+ * is hashed with a seed chosen at start up, so that keys cannot be
+ * made to collide in advance. The cache is cut into segments, each an
+ * LRU map bounded in bytes, and a new record is only admitted in place
+ * of the least recently used one if it has been asked for more often
+ * (TinyLFU, Einziger, Friedman and Manes, 2017). Frequencies are kept
+ * approximately in a small count-min sketch of 4 bit counters that are
+ * halved from time to time, so that old popularity fades. Entries also
+ * expire after a time.
+ *
+ * A cache holds nothing until it is given a size, by init from the
+ * solver parameters `<solver>ResultCacheBytes' and `resultCacheSeconds'.
+ */
+final class ResultCache<V>
+{
+    // bytes given to a cache by init unless set, and the time entries
+    // are kept
+    static final long DEFAULT_BYTES = 16L << 20;
+    static final long DEFAULT_SECONDS = 3600;
+
+    // bytes taken by the key, entry and map node of each entry, besides
+    // the value and the key's text
+    static final int ENTRY_BYTES = 112;
+
+    private static final int SEGMENTS = 16;
+
+    // hash seed of this process
+    private static final long SEED = new SecureRandom().nextLong();
+
+    // every cache, for metrics
+    private static final List<ResultCache<?>> _caches = new CopyOnWriteArrayList<ResultCache<?>>();
+
+    private final String _name;
+    private volatile List<Segment<V>> _segments;
+
+    ResultCache(String name)
+    {
+        _name = name;
+        configure(0, 0);
+        _caches.add(this);
+    }
+
+    void init(Map<String, String> params)
+    {
+        // size the cache from the solver parameters, dropping anything
+        // held.
+        String bytes = params.get(_name + "ResultCacheBytes");
+        String seconds = params.get("resultCacheSeconds");
+        configure(bytes != null ? Long.parseLong(bytes.trim()) : DEFAULT_BYTES,
+                  TimeUnit.SECONDS.toNanos(seconds != null ? Long.parseLong(seconds.trim()) : DEFAULT_SECONDS));
+    }
+
+    void configure(long bytes, long ttl)
+    {
+        // hold at most `bytes', each entry for `ttl' nanoseconds.
+        List<Segment<V>> segments = new ArrayList<Segment<V>>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; ++i)
+            segments.add(new Segment<V>(bytes/SEGMENTS, ttl));
+        _segments = segments;
+    }
+
+    boolean enabled()
+    {
+        return _segments.get(0)._limit > 0;
+    }
+
+    V get(Key key)
+    {
+        // return the value for `key', or null. Asking counts towards the
+        // key's admission whether or not it is held.
+        return segment(key).get(key);
+    }
+
+    void put(Key key, V value, int bytes)
+    {
+        // offer `value', of about `bytes', for `key'. It may not be
+        // admitted. `key' is copied, so a probe may be reused.
+        segment(key).put(key, value, bytes);
+    }
+
+    private Segment<V> segment(Key key)
+    {
+        return _segments.get((int)(key._h2 >>> 60));
+    }
+
+    static void metrics(StringBuilder sb)
+    {
+        // add the statistics of every cache in the Prometheus text
+        // format.
+        String[] names = { "hits", "misses", "admissions", "rejections", "evictions", "expirations" };
+        long[][] v = new long[_caches.size()][];
+        long[] bytes = new long[v.length];
+        long[] entries = new long[v.length];
+        for (int c = 0; c < v.length; ++c)
+        {
+            v[c] = new long[names.length];
+            for (Segment<?> s : _caches.get(c)._segments)
+            {
+                synchronized (s)
+                {
+                    v[c][0] += s._hits;
+                    v[c][1] += s._misses;
+                    v[c][2] += s._admissions;
+                    v[c][3] += s._rejections;
+                    v[c][4] += s._evictions;
+                    v[c][5] += s._expirations;
+                    bytes[c] += s._bytes;
+                    entries[c] += s._map.size();
+                }
+            }
+        }
+
+        for (int i = 0; i < names.length; ++i)
+        {
+            sb.append("# TYPE result_cache_").append(names[i]).append(" counter\n");
+            for (int c = 0; c < v.length; ++c)
+                sb.append("result_cache_").append(names[i]).append("{solver=\"")
+                    .append(_caches.get(c)._name).append("\"} ").append(v[c][i]).append('\n');
+        }
+
+        sb.append("# HELP result_cache_hit_ratio hits over lookups since start up\n");
+        sb.append("# TYPE result_cache_hit_ratio gauge\n");
+        for (int c = 0; c < v.length; ++c)
+        {
+            long n = v[c][0] + v[c][1];
+            sb.append("result_cache_hit_ratio{solver=\"").append(_caches.get(c)._name)
+                .append("\"} ").append(n == 0 ? 0.0 : (double)v[c][0]/n).append('\n');
+        }
+        sb.append("# TYPE result_cache_bytes gauge\n");
+        for (int c = 0; c < v.length; ++c)
+            sb.append("result_cache_bytes{solver=\"").append(_caches.get(c)._name)
+                .append("\"} ").append(bytes[c]).append('\n');
+        sb.append("# TYPE result_cache_entries gauge\n");
+        for (int c = 0; c < v.length; ++c)
+            sb.append("result_cache_entries{solver=\"").append(_caches.get(c)._name)
+                .append("\"} ").append(entries[c]).append('\n');
+    }
+
+    static final class Key
+    {
+        // normalised record text, with its hashes. A probe is cleared
+        // and fed the lines of a record; the cache keeps copies.
+        private char[] _text = new char[64];
+        private int    _len;
+        private long   _h1;
+        private long   _h2;
+
+        Key clear()
+        {
+            _h1 = SEED ^ 0xcbf29ce484222325L;
+            _h2 = SEED;
+            _len = 0;
+            return this;
+        }
+
+        Key add(char[] c, int s, int e)
+        {
+            // add the line in c[s..e), after any before it.
+            while (s < e && c[s] <= ' ') ++s;
+            while (e > s && c[e-1] <= ' ') --e;
+            if (_len > 0) feed('\n');
+            boolean space = false;
+            for (int i = s; i < e; ++i)
+            {
+                if (c[i] <= ' ') space = true;
+                else
+                {
+                    if (space) feed(' ');
+                    space = false;
+                    feed(c[i]);
+                }
+            }
+            return this;
+        }
+
+        private void feed(char c)
+        {
+            // keep `c' and add it to two independent seeded 64 bit
+            // hashes, FNV-1a and a multiply-rotate
+            if (_len == _text.length) _text = Arrays.copyOf(_text, 2*_len);
+            _text[_len++] = c;
+            _h1 = (_h1 ^ c)*0x100000001b3L;
+            _h2 = Long.rotateLeft(_h2 + c*0xc2b2ae3d27d4eb4fL, 31)*0x9e3779b97f4a7c15L;
+        }
+
+        int length()
+        {
+            return _len;
+        }
+
+        private Key copy()
+        {
+            Key k = new Key();
+            k._text = Arrays.copyOf(_text, _len);
+            k._len = _len;
+            k._h1 = _h1;
+            k._h2 = _h2;
+            return k;
+        }
+
+        public int hashCode()
+        {
+            long h = _h1 ^ (_h2 >>> 32);
+            return (int)(h ^ (h >>> 32));
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            if (_h1 != k._h1 || _h2 != k._h2 || _len != k._len) return false;
+            for (int i = 0; i < _len; ++i)
+                if (_text[i] != k._text[i]) return false;
+            return true;
+        }
+    }
+
+    private static final class Node<V>
+    {
+        final V    _value;
+        final int  _bytes;
+        final long _expires;
+
+        Node(V value, int bytes, long expires)
+        {
+            _value = value;
+            _bytes = bytes;
+            _expires = expires;
+        }
+    }
+
+    private static final class Segment<V>
+    {
+        // an LRU map of at most `_limit' bytes, with the admission sketch
+        // for its keys.
+        private final LinkedHashMap<Key, Node<V>> _map =
+            new LinkedHashMap<Key, Node<V>>(16, 0.75f, true);
+        private final long   _limit;
+        private final long   _ttl;
+        private long         _bytes;
+
+        // 16 counters of 4 bits in each word, looked up by 4 hashes of
+        // the key. Halved after `_sample' additions.
+        private final long[] _sketch;
+        private final int    _mask;
+        private final int    _sample;
+        private int          _additions;
+
+        private long _hits, _misses, _admissions, _rejections, _evictions, _expirations;
+
+        Segment(long limit, long ttl)
+        {
+            _limit = limit;
+            _ttl = ttl;
+
+            // about a counter for each entry that could be held
+            int n = 256;
+            while (n < limit/ENTRY_BYTES && n < (1 << 24)) n <<= 1;
+            _sketch = new long[limit > 0 ? n/16 : 0];
+            _mask = n - 1;
+            _sample = 10*n;
+        }
+
+        synchronized V get(Key key)
+        {
+            if (_limit == 0) return null;
+            increment(key);
+            Node<V> e = _map.get(key);
+            if (e != null && e._expires - System.nanoTime() < 0)
+            {
+                remove(key, e);
+                ++_expirations;
+                e = null;
+            }
+            if (e == null)
+            {
+                ++_misses;
+                return null;
+            }
+            ++_hits;
+            return e._value;
+        }
+
+        synchronized void put(Key key, V value, int bytes)
+        {
+            bytes += ENTRY_BYTES + 2*key.length();
+            if (bytes > _limit) return;
+
+            long now = System.nanoTime();
+            Node<V> old = _map.get(key);
+            if (old != null) remove(key, old);
+
+            // make room, while the candidate is wanted more than each
+            // least recently used entry
+            int f = frequency(key);
+            Iterator<Map.Entry<Key, Node<V>>> it = _map.entrySet().iterator();
+            while (_bytes + bytes > _limit)
+            {
+                Map.Entry<Key, Node<V>> victim = it.next();
+                Node<V> e = victim.getValue();
+                if (e._expires - now < 0) ++_expirations;
+                else if (f > frequency(victim.getKey())) ++_evictions;
+                else
+                {
+                    ++_rejections;
+                    return;
+                }
+                it.remove();
+                _bytes -= e._bytes;
+            }
+            _map.put(key.copy(), new Node<V>(value, bytes, now + _ttl));
+            _bytes += bytes;
+            ++_admissions;
+        }
+
+        private void remove(Key key, Node<V> e)
+        {
+            _map.remove(key);
+            _bytes -= e._bytes;
+        }
+
+        private int index(Key key, int i)
+        {
+            // counter `i' of the key, by double hashing
+            long h = key._h1 + i*(key._h2 | 1);
+            return (int)(h ^ (h >>> 32)) & _mask;
+        }
+
+        private int frequency(Key key)
+        {
+            int f = 15;
+            for (int i = 0; i < 4; ++i)
+            {
+                int k = index(key, i);
+                f = Math.min(f, (int)(_sketch[k >>> 4] >>> ((k & 15) << 2)) & 15);
+            }
+            return f;
+        }
+
+        private void increment(Key key)
+        {
+            // count one more request for `key', saturating at 15
+            for (int i = 0; i < 4; ++i)
+            {
+                int k = index(key, i);
+                int shift = (k & 15) << 2;
+                if (((_sketch[k >>> 4] >>> shift) & 15) != 15)
+                    _sketch[k >>> 4] += 1L << shift;
+            }
+
+            // halve every counter now and then
+            if (++_additions == _sample)
+            {
+                for (int j = 0; j < _sketch.length; ++j)
+                    _sketch[j] = (_sketch[j] >>> 1) & 0x7777777777777777L;
+                _additions /= 2;
+            }
+        }
+    }
+}
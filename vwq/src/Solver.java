@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * One of the questions, as served by Question.
+ *
+ * Solvers are found with ServiceLoader, each listed in
+ * META-INF/services/Solver, and served at /question/{name} for the form
+ * and plain text and at /api/solve/{name} for JSON. The instance found
+ * is kept for the life of the application and makes a new solver, with
+ * state of its own, for each request. Batch runs them over files.
+ */
+public interface Solver
+{
+    // the name served under, eg change
+    String name();
+
+    // the title of its pages, eg Question 2
+    String title();
+
+    // set up from the web application's context parameters. Called
+    // once, on the instance found by ServiceLoader.
+    void init(Map<String, String> params);
+
+    // a new solver of this kind for one request
+    Solver create();
+
+    // the input ends at a line beginning with this, after trimming, eg #
+    String endMark();
+
+    // records run over several lines and end at a line beginning with
+    // this, or null if each line is a record.
+    String recordMark();
+
+    // have each line's working written to `trace', if there is any
+    void setTrace(StringBuilder trace);
+
+    // solve the input lines of `in', writing each result line to `out'
+    // as it is produced.
+    void calculate(Reader in, Writer out) throws IOException;
+
+    // as calculate, with the input split across threads. Results are the
+    // same and in the same order.
+    void calculateParallel(Reader in, Writer out) throws IOException;
+
+    // solve the JSON record that begins with `token', writing its result
+    // or an error object to `out'.
+    void solve(JsonReader in, int token, JsonWriter out) throws IOException;
+}
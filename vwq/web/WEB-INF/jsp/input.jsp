@@ -1,15 +1,15 @@
 <%@ page contentType="text/html;charset=UTF-8" language="java" %>
 <html>
 <head>
-    <link rel="stylesheet" type="text/css" href="style.css">
-    <title>Bluemix Question 3</title>
+    <link rel="stylesheet" type="text/css" href="/style.css">
+    <title>Bluemix <%= request.getAttribute("title") %></title>
 </head>
 
 <body>
 
-<h1>Question 3 Input Data</h1>
+<h1><%= request.getAttribute("title") %> Input Data</h1>
 
-<form action="question" method="post">
+<form action="<%= request.getAttribute("name") %>" method="post">
     <label>
         <textarea name="inputdata" cols="80" rows="20"></textarea><br/>
     </label>
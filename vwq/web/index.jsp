@@ -0,0 +1,22 @@
+<%@ page contentType="text/html;charset=UTF-8" language="java" %>
+<%@ page import="java.util.Map" %>
+<html>
+<head>
+    <link rel="stylesheet" type="text/css" href="style.css">
+    <title>Bluemix Questions</title>
+</head>
+
+<body>
+
+<h1>Bluemix Questions</h1>
+
+<%
+  @SuppressWarnings("unchecked")
+  Map<String, String> questions = (Map<String, String>) application.getAttribute("questions");
+  if (questions != null)
+    for (Map.Entry<String, String> q : questions.entrySet())
+      out.println("<p><a href='question/" + q.getKey() + "'>" + q.getValue() + "</a></p>");
+%>
+
+</body>
+</html>
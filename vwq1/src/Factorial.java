@@ -23,17 +23,464 @@
  */
 
 import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Factorial
 {
-    private final StringBuffer results = new StringBuffer();
+    private final StringBuilder results = new StringBuilder();
+
+    // output staging for flush
+    private char[] _out = new char[1024];
+
+    // lines of input per task in parallel mode, and at most about
+    // BATCH_DIGITS digits of results. A line of more is solved alone.
+    private static final int BATCH_LINES = 1024;
+    private static final long BATCH_DIGITS = 1 << 20;
+
+    // largest factorial that fits in a long
+    private static final int LONG_MAX_N = 20;
+
+    // largest factorial calculated
+    private static final int MAX_N = 1 << 22;
+
+    // products of more factors than this are split across threads
+    private static final int PARALLEL_FACTORS = 1 << 10;
+
+    // numbers of more decimal digits than this are converted in parallel
+    private static final int PARALLEL_DIGITS = 1 << 15;
+
+    // numbers of fewer bits than this are converted by BigInteger itself
+    private static final int SMALL_BITS = 1 << 11;
+
+    // _pow10[k] is 10^(2^k), extended as needed
+    private static BigInteger[] _pow10 = { BigInteger.TEN };
+
+    // _small[n] is n! for 0 <= n <= LONG_MAX_N
+    private static final long[] _small = new long[LONG_MAX_N + 1];
+
+    static
+    {
+        _small[0] = 1;
+        for (int i = 1; i <= LONG_MAX_N; ++i) _small[i] = _small[i-1]*i;
+    }
+
+    // spacing of the stored factorials
+    private static final int CHECKPOINT = 1000;
+
+    // factorials of multiples of CHECKPOINT met so far, shared by all
+    // requests, and the bytes they hold.
+    private static final ConcurrentSkipListMap<Integer, BigInteger> _checkpoints =
+        new ConcurrentSkipListMap<Integer, BigInteger>();
+    private static final AtomicLong _checkpointBytes = new AtomicLong();
+
+    // most bytes held by `_checkpoints'
+    private static volatile long _checkpointLimit = 64L << 20;
+
+    public static void setCacheLimit(long bytes)
+    {
+        // set the memory allowed for stored factorials, dropping the
+        // largest as needed.
+        _checkpointLimit = bytes;
+        trimCheckpoints();
+    }
 
     private static long factorial(int x)
     {
         // return factorial of `x'. valid for 0 <= x < 21
-        long v = 1;
-        for (int i = 2; i <= x; ++i) v *= i;
-        return v;
+        return _small[x];
+    }
+
+    private static BigInteger bigFactorial(int n)
+    {
+        // return factorial of `n' > LONG_MAX_N.
+        //
+        // start from the nearest stored factorial below `n' and multiply
+        // forward, unless that is less than half way, when (n/1000*1000)!
+        // is found afresh. a factorial at a multiple of CHECKPOINT passed
+        // on the way is stored for later.
+        int base = n - n % CHECKPOINT;
+        int from = LONG_MAX_N;
+        BigInteger v = BigInteger.valueOf(_small[LONG_MAX_N]);
+
+        Map.Entry<Integer, BigInteger> e = _checkpoints.floorEntry(n);
+        if (e != null)
+        {
+            from = e.getKey();
+            v = e.getValue();
+        }
+
+        if (from < base)
+        {
+            if (base - from > base/2)
+                v = swingFactorial(base);
+            else
+                v = v.multiply(rangeProduct(from, base));
+            from = base;
+            addCheckpoint(base, v);
+        }
+        return from < n ? v.multiply(rangeProduct(from, n)) : v;
+    }
+
+    private static void addCheckpoint(int n, BigInteger v)
+    {
+        // store n! = `v' unless it is already there.
+        if (_checkpoints.putIfAbsent(n, v) == null)
+        {
+            _checkpointBytes.addAndGet(v.bitLength()/8 + 64);
+            trimCheckpoints();
+        }
+    }
+
+    private static void trimCheckpoints()
+    {
+        // drop the largest stored factorials while over the limit.
+        // these are the most costly to keep and the least often needed.
+        Map.Entry<Integer, BigInteger> e;
+        while (_checkpointBytes.get() > _checkpointLimit
+               && (e = _checkpoints.pollLastEntry()) != null)
+            _checkpointBytes.addAndGet(-(e.getValue().bitLength()/8 + 64));
+    }
+
+    private static BigInteger rangeProduct(int a, int b)
+    {
+        // return (a+1)*(a+2)*...*b as a balanced product tree, packing
+        // consecutive factors into longs where they fit.
+        long[] f = new long[b - a];
+        int c = 0;
+        long acc = 1;
+        for (int i = a + 1; i <= b; ++i)
+        {
+            if (acc > Long.MAX_VALUE/i)
+            {
+                f[c++] = acc;
+                acc = 1;
+            }
+            acc *= i;
+        }
+        f[c++] = acc;
+        return new Product(f, 0, c).invoke();
+    }
+
+    private static BigInteger swingFactorial(int n)
+    {
+        // return factorial of `n' by the prime swing method (Luschny).
+        //
+        // n! = (n/2)!^2 * swing(n), where the swing is n!/(n/2)!^2 and its
+        // prime factorisation is known directly. The factors of two are
+        // left out throughout and added by a final shift, since there are
+        // n - bitcount(n) of them. Each swing is multiplied out as a
+        // balanced product tree, so the big multiplications are between
+        // numbers of similar size, and the swing of `n' is found on
+        // another thread while (n/2)! is being worked out.
+        int[] primes = oddPrimes(n);
+        return new OddFactorial(n, primes).invoke().shiftLeft(n - Integer.bitCount(n));
+    }
+
+    private static int[] oddPrimes(int n)
+    {
+        // return the odd primes up to `n', ascending.
+        // sieve over odd numbers only. odd[i] represents 2i+1
+        int h = (n + 1)/2;
+        boolean[] composite = new boolean[h];
+        int c = 0;
+        for (int i = 1; i < h; ++i)
+        {
+            if (composite[i]) continue;
+            ++c;
+            long p = 2*i + 1;
+            for (long j = p*p/2; j < h; j += p) composite[(int)j] = true;
+        }
+
+        int[] primes = new int[c];
+        c = 0;
+        for (int i = 1; i < h; ++i)
+            if (!composite[i]) primes[c++] = 2*i + 1;
+        return primes;
+    }
+
+    private static long[] oddSwingFactors(int n, int[] primes)
+    {
+        // return the factors of the odd part of swing(n), packed several
+        // to a long where they fit.
+        //
+        // prime p appears in swing(n) to the power given by the number of
+        // odd quotients n/p, n/p^2, ... above sqrt(n) there is only the
+        // one quotient.
+        long[] f = new long[16];
+        int c = 0;
+        long acc = 1;
+        int root = (int)Math.sqrt(n);
+        for (int p : primes)
+        {
+            if (p > n) break;
+            long pp = 1;
+            if (p <= root)
+            {
+                for (int q = n/p; q > 0; q /= p)
+                    if ((q & 1) == 1) pp *= p;
+            }
+            else if (((n/p) & 1) == 1) pp = p;
+
+            if (pp == 1) continue;
+            if (acc > Long.MAX_VALUE/pp)
+            {
+                if (c == f.length) f = Arrays.copyOf(f, 2*c);
+                f[c++] = acc;
+                acc = 1;
+            }
+            acc *= pp;
+        }
+        if (acc > 1)
+        {
+            if (c == f.length) f = Arrays.copyOf(f, c + 1);
+            f[c++] = acc;
+        }
+        return Arrays.copyOf(f, c);
+    }
+
+    private static class OddFactorial extends RecursiveTask<BigInteger>
+    {
+        // odd part of n!, as (n/2)!^2 * swing(n) with both halves forked.
+        private final int   _n;
+        private final int[] _primes;
+        private final Cancellation _cancel = Cancellation.current();
+
+        OddFactorial(int n, int[] primes)
+        {
+            _n = n;
+            _primes = primes;
+        }
+
+        protected BigInteger compute()
+        {
+            Cancellation.Entry e = Cancellation.enter(_cancel);
+            try
+            {
+                checkCancelled();
+                return oddFactorial();
+            }
+            finally
+            {
+                e.exit();
+            }
+        }
+
+        private BigInteger oddFactorial()
+        {
+            if (_n < 2) return BigInteger.ONE;
+            long[] f = oddSwingFactors(_n, _primes);
+            Product swing = new Product(f, 0, f.length);
+            if (f.length > PARALLEL_FACTORS) swing.fork();
+            BigInteger half = new OddFactorial(_n/2, _primes).compute();
+            BigInteger s = f.length > PARALLEL_FACTORS ? swing.join() : swing.compute();
+            return half.multiply(half).multiply(s);
+        }
+    }
+
+    private static class Product extends RecursiveTask<BigInteger>
+    {
+        // product of f[lo..hi) as a balanced tree, large subtrees in
+        // parallel.
+        private final long[] _f;
+        private final int    _lo;
+        private final int    _hi;
+        private final Cancellation _cancel = Cancellation.current();
+
+        Product(long[] f, int lo, int hi)
+        {
+            _f = f;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        protected BigInteger compute()
+        {
+            Cancellation.Entry e = Cancellation.enter(_cancel);
+            try
+            {
+                checkCancelled();
+                return product();
+            }
+            finally
+            {
+                e.exit();
+            }
+        }
+
+        private BigInteger product()
+        {
+            int n = _hi - _lo;
+            if (n <= 8)
+            {
+                BigInteger v = BigInteger.ONE;
+                for (int i = _lo; i < _hi; ++i) v = v.multiply(BigInteger.valueOf(_f[i]));
+                return v;
+            }
+
+            int mid = (_lo + _hi) >>> 1;
+            Product left = new Product(_f, _lo, mid);
+            Product right = new Product(_f, mid, _hi);
+            if (n > PARALLEL_FACTORS)
+            {
+                left.fork();
+                BigInteger r = right.compute();
+                return left.join().multiply(r);
+            }
+            return left.compute().multiply(right.compute());
+        }
+    }
+
+    private static synchronized BigInteger pow10(int k)
+    {
+        // return 10^(2^k), squaring up from the largest known.
+        if (k >= _pow10.length)
+        {
+            int n = _pow10.length;
+            _pow10 = Arrays.copyOf(_pow10, k + 1);
+            for (int i = n; i <= k; ++i) _pow10[i] = _pow10[i-1].multiply(_pow10[i-1]);
+        }
+        return _pow10[k];
+    }
+
+    private static class Decimal extends RecursiveAction
+    {
+        // write `v' as exactly `len' decimal digits, with leading zeros,
+        // into buf[off..off+len).
+        //
+        // `v' is split about the largest 10^(2^k) below it, and each half
+        // written into its own part of `buf', large halves in parallel.
+        // unlike BigInteger.toString this makes no intermediate strings.
+        private final BigInteger _v;
+        private final char[]     _buf;
+        private final int        _off;
+        private final int        _len;
+        private final Cancellation _cancel = Cancellation.current();
+
+        Decimal(BigInteger v, char[] buf, int off, int len)
+        {
+            _v = v;
+            _buf = buf;
+            _off = off;
+            _len = len;
+        }
+
+        protected void compute()
+        {
+            Cancellation.Entry e = Cancellation.enter(_cancel);
+            try
+            {
+                checkCancelled();
+                decimal();
+            }
+            finally
+            {
+                e.exit();
+            }
+        }
+
+        private void decimal()
+        {
+            if (_v.bitLength() < SMALL_BITS)
+            {
+                String s = _v.toString();
+                int z = _len - s.length();
+                Arrays.fill(_buf, _off, _off + z, '0');
+                s.getChars(0, s.length(), _buf, _off + z);
+                return;
+            }
+
+            // split at 10^h where h is the largest power of two below `len'
+            int k = 31 - Integer.numberOfLeadingZeros(_len - 1);
+            int h = 1 << k;
+            BigInteger[] qr = _v.divideAndRemainder(pow10(k));
+            Decimal hi = new Decimal(qr[0], _buf, _off, _len - h);
+            Decimal lo = new Decimal(qr[1], _buf, _off + _len - h, h);
+            if (_len > PARALLEL_DIGITS)
+                invokeAll(hi, lo);
+            else
+            {
+                hi.compute();
+                lo.compute();
+            }
+        }
+    }
+
+    private void appendDecimal(BigInteger v)
+    {
+        // append the decimal representation of non-negative `v' to the
+        // results.
+        // the digit count from the bit length may be one too many, in
+        // which case the leading zero is skipped.
+        int len = (int)(v.bitLength()*0.30102999566398120) + 1;
+        char[] buf = new char[len];
+        new Decimal(v, buf, 0, len).invoke();
+        int z = 0;
+        while (z < len - 1 && buf[z] == '0') ++z;
+        results.append(buf, z, len - z);
+    }
+
+    public static boolean inRange(int n)
+    {
+        // true if n! can be calculated
+        return n >= 0 && n <= MAX_N;
+    }
+
+    private void appendValue(int n)
+    {
+        // append the decimal value of n! to the results.
+        if (n <= LONG_MAX_N)
+            results.append(factorial(n));
+        else
+            appendDecimal(bigFactorial(n));
+    }
+
+    public void calculate(int n, Writer out) throws IOException
+    {
+        // write the decimal value of n! to `out', with no line end. For
+        // callers that read records of their own, as the JSON API.
+        checkCancelled();
+        if (!inRange(n))
+            throw new IllegalArgumentException("value " + n + " out of range");
+        appendValue(n);
+        flush(out);
+    }
+
+    private String readLine(BufferedReader in)
+    {
+        // return the next input line, or null at the end of the input
+        // or if it cannot be read.
+        try
+        {
+            return in.readLine();
+        }
+        catch (IOException e)
+        {
+            results.append("error reading input\n");
+            return null;
+        }
+    }
+
+    private void flush(Writer out) throws IOException
+    {
+        // pass any pending results on to `out' and empty the buffer,
+        // copying through `_out' rather than a new string.
+        int n = results.length();
+        if (n > _out.length) _out = new char[Math.max(n, 2*_out.length)];
+        results.getChars(0, n, _out, 0);
+        out.write(_out, 0, n);
+        results.setLength(0);
     }
 
     public String calculate(String arg)
@@ -41,41 +488,187 @@ public class Factorial
         // receive input data from web page. Perform calculation and
         // return result to web page as a string.
         
-        BufferedReader in = new BufferedReader(new StringReader(arg));
+        StringWriter out = new StringWriter();
         try
         {
-            String line;
-            while ((line = in.readLine()) != null)
+            calculate(new StringReader(arg), out);
+        }
+        catch (IOException e)
+        {
+            // cannot happen writing to a string
+        }
+
+        // return results to web page.
+        return out.toString();
+    }
+
+    public void calculate(Reader arg, Writer out) throws IOException
+    {
+        // streaming version. Read input from `arg' and write each result
+        // line to `out' as soon as it is produced, so that memory use does
+        // not depend on the size of the input.
+        
+        BufferedReader in = new BufferedReader(arg);
+        String line;
+        while ((line = readLine(in)) != null)
+        {
+            checkCancelled();
+            line = line.trim(); 
+            if (line.startsWith("#")) break;
+            if (line.startsWith("//")) continue; // skip line comments
+            try
+            {
+                if (line.length() > 0) // skip blank lines
+                {
+                    int n = Integer.parseInt(line);
+
+                    // ensure we're in a valid range 
+                    if (inRange(n))
+                        appendValue(n);
+                    else
+                        results.append("value ").append(n).append(" out of range");
+                    results.append('\n');
+                }
+            }
+            catch (CancellationException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
             {
-                line = line.trim(); 
-                if (line.startsWith("#")) break;
-                if (line.startsWith("//")) continue; // skip line comments
+                results.append("malformed input: \"").append(line).append("\"\n");
+            }
+            flush(out);
+        }
+        flush(out);
+    }
+
+    private static void checkCancelled()
+    {
+        // give up if this thread has been interrupted, or the pool task
+        // it is running cancelled, as when the request being served has
+        // run out of time or its client has gone away.
+        if (Thread.currentThread().isInterrupted() || Cancellation.cancelled())
+            throw new CancellationException();
+    }
+
+    private static String result(Future<String> f) throws IOException
+    {
+        // wait for a batch to finish and return its results.
+        try
+        {
+            return f.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof CancellationException)
+                throw (CancellationException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Callable<String> task(final String batch, final Cancellation cancel)
+    {
+        // solve `batch' with a Factorial of its own, under `cancel'.
+        return new Callable<String>()
+        {
+            public String call()
+            {
+                Cancellation.Entry e = Cancellation.enter(cancel);
                 try
                 {
-                    if (line.length() > 0) // skip blank lines
-                    {
-                        int n = Integer.parseInt(line);
-
-                        // ensure we're in a valid range 
-                        if (n >= 0 && n < 21)
-                            results.append(factorial(n));
-                        else
-                            results.append("value ").append(n).append(" out of range");
-                        results.append('\n');
-                    }
+                    return new Factorial().calculate(batch);
                 }
-                catch (Exception e)
+                finally
                 {
-                    results.append("malformed input: \"").append(line).append("\"\n");
+                    e.exit();
                 }
             }
+        };
+    }
+
+    private static long digits(String t)
+    {
+        // estimate the length of the result of the trimmed line `t'. n!
+        // has fewer than n*log10(n) + 1 digits.
+        try
+        {
+            int n = Integer.parseInt(t);
+            if (inRange(n)) return (long)(n*Math.log10(Math.max(n, 2))) + 1;
         }
-        catch (IOException e)
+        catch (NumberFormatException e)
         {
-            results.append("error reading input\n");
+            // malformed, as the message
         }
+        return t.length() + 32;
+    }
 
-        // return results to web page.
-        return results.toString();
+    public void calculateParallel(Reader arg, Writer out) throws IOException
+    {
+        // parallel version of calculate. The input is cut into batches of
+        // about BATCH_LINES lines or BATCH_DIGITS digits of results, each
+        // solved by a separate Factorial in the common pool so that no
+        // solver state is shared. Results are written in input order and
+        // match calculate exactly.
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+        int window = 2*pool.getParallelism();
+        Cancellation cancel = Cancellation.child();
+
+        try
+        {
+            BufferedReader in = new BufferedReader(arg);
+            StringBuilder batch = new StringBuilder();
+            int n = 0;
+            long size = 0;
+            String line;
+            while ((line = readLine(in)) != null)
+            {
+                checkCancelled();
+                String t = line.trim();
+                if (t.startsWith("#")) break;
+                long d = digits(t);
+                if (d > BATCH_DIGITS)
+                {
+                    // too big to hold with others. write everything before
+                    // it, then solve it here straight to `out'.
+                    if (n > 0) pending.add(pool.submit(task(batch.toString(), cancel)));
+                    batch.setLength(0);
+                    n = 0;
+                    size = 0;
+                    while (!pending.isEmpty()) out.write(result(pending.remove()));
+                    calculate(new StringReader(line), out);
+                    continue;
+                }
+                batch.append(line).append('\n');
+                size += d;
+                if (++n >= BATCH_LINES || size >= BATCH_DIGITS)
+                {
+                    // keep a bounded number of batches in flight
+                    if (pending.size() >= window) out.write(result(pending.remove()));
+                    pending.add(pool.submit(task(batch.toString(), cancel)));
+                    batch.setLength(0);
+                    n = 0;
+                    size = 0;
+                }
+            }
+            if (n > 0) pending.add(pool.submit(task(batch.toString(), cancel)));
+
+            while (!pending.isEmpty()) out.write(result(pending.remove()));
+        }
+        finally
+        {
+            // if we were interrupted or the output failed, abandon the
+            // batches not yet written, stopping those already running.
+            if (!pending.isEmpty()) cancel.cancel();
+            for (Future<String> f : pending) f.cancel(false);
+        }
+        flush(out);
     }
 }
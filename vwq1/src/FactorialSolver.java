@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Question 1, factorials, as a Solver.
+ */
+public class FactorialSolver implements Solver
+{
+    private final Factorial _f = new Factorial();
+
+    public String name()
+    {
+        return "factorial";
+    }
+
+    public String title()
+    {
+        return "Question 1";
+    }
+
+    public void init(Map<String, String> params)
+    {
+        // optional limit on the memory kept by the factorial store
+        String limit = params.get("factorialCacheBytes");
+        if (limit != null) Factorial.setCacheLimit(Long.parseLong(limit.trim()));
+    }
+
+    public Solver create()
+    {
+        return new FactorialSolver();
+    }
+
+    public String endMark()
+    {
+        return "#";
+    }
+
+    public String recordMark()
+    {
+        return null;
+    }
+
+    public void setTrace(StringBuilder trace)
+    {
+    }
+
+    public void calculate(Reader in, Writer out) throws IOException
+    {
+        _f.calculate(in, out);
+    }
+
+    public void calculateParallel(Reader in, Writer out) throws IOException
+    {
+        _f.calculateParallel(in, out);
+    }
+
+    public void solve(JsonReader in, int t, JsonWriter out) throws IOException
+    {
+        // a record is a number n, whose result is n! as a number.
+        if (t != JsonReader.NUMBER)
+        {
+            in.skip(t);
+            out.error("expected a number");
+            return;
+        }
+
+        int n;
+        try
+        {
+            n = in.intValue();
+        }
+        catch (NumberFormatException e)
+        {
+            out.error(e.getMessage());
+            return;
+        }
+
+        if (Factorial.inRange(n))
+            _f.calculate(n, out.rawValue());
+        else
+            out.error("value " + n + " out of range");
+    }
+}
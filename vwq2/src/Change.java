@@ -23,9 +23,18 @@
  */
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /* 
  * Find optimal solution to the Change Making Problem
@@ -57,11 +66,21 @@ import java.util.List;
  * the biggest coin not exceeding the value to make, does not give the best
  * result in some _real world_ money systems.
  * 
+ * A machine may also be short of some coins. A coin written as `coin*count'
+ * has only that many available, eg
+ *
+ *   100,50*1,20,10,5,2,1:140  gives  100x1,20x2
+ *
+ * and a line whose value cannot be made from the stock has no solution.
+ *
  */
  
 public class Change
 {
-    private final StringBuffer results = new StringBuffer();
+    private final StringBuilder results = new StringBuilder();
+
+    // lines of input per task in parallel mode
+    private static final int BATCH_LINES = 1024;
 
     // the array of coin denominations
     private int[]   _coins;
@@ -75,18 +94,469 @@ public class Change
     // working partial solution
     private int[]   _s;
 
-    // infeasibility cutoff
-    private int[]   _cutoff;
+    // infeasibility cutoff. Values proven infeasible during a search are
+    // marked either in the bitset `_cutoff' or, for amounts beyond
+    // CUTOFF_BITS, in the hashed set `_cutoffSet'. Both are kept for the
+    // next line.
+    private long[]  _cutoff = new long[0];
+    private IntSet  _cutoffSet;
+    private boolean _dense;
 
-    // debug counter
+    // frame stack of changeMaker, FRAME ints for each run of frames
+    private int[]   _frames = new int[0];
+
+    // tables of the bounded engine, kept for the next line and grown as
+    // needed: two fewest coins rows, the queue, and the counts taken of
+    // each coin. `_boundInts' is their size, and above BOUNDED_KEEP they
+    // are let go once the line is done.
+    private int[]   _boundF = new int[0];
+    private int[]   _boundG = new int[0];
+    private int[]   _boundQueue = new int[0];
+    private int[][] _boundTake = new int[0][];
+    private long    _boundInts;
+
+    // search effort for the current line: nodes visited and branches
+    // skipped through the cutoff table
     private int     _count;
+    private int     _hits;
+
+    // a search pauses after `_pause' nodes to go on in ParallelSearch,
+    // whose cutoff then takes `_parallelBytes'
+    private int     _pause;
+    private long    _parallelBytes;
+
+    // per line trace, if wanted
+    private StringBuilder _trace;
+
+    // coins and value scanned from the current line. Only the first
+    // `_ncoins' of `_buf' are in use. Lines giving a stock for any coin,
+    // as `50*3', are `_bounded' and have the stock of each coin in
+    // `_stock', UNLIMITED if not given.
+    private int[]   _buf = new int[16];
+    private int[]   _stock = new int[16];
+    private long[]  _pack = new long[16];
+    private int     _ncoins;
+    private int     _val;
+    private boolean _bounded;
+
+    // number scanned by parseInt
+    private int     _int;
+
+    // input buffer. The current line is _in[_ls.._le) and unread input
+    // runs from `_ip' to `_ie'.
+    private char[]  _in = new char[8192];
+    private int     _ip, _ie, _ls, _le;
+    private boolean _eof;
+    private boolean _skipLF;
+
+    // output staging for flush
+    private char[]  _out = new char[1024];
+
+    // key used to look up `_buf' in `_systems'
+    private final CoinKey _probe = new CoinKey();
+
+    // key of the current line in `_results', and the coins of a result
+    // taken from there
+    private final ResultCache.Key _key = new ResultCache.Key();
+    private int[]   _cached = new int[16];
+
+    // engines used to solve a line
+    private static final int GREEDY = 0;
+    private static final int SEARCH = 1;
+    private static final int DYNAMIC = 2;
+    private static final int BOUNDED = 3;
+
+    // outcomes of solve
+    public static final int SOLVED = 0;
+    public static final int NO_SOLUTION = 1;
+    public static final int TOO_LARGE = 2;
+    public static final int MALFORMED = 3;
+
+    // the dynamic programming engine is used when value*ncoins is within
+    // this many steps. Beyond that the truncated search is preferred.
+    private static final long DYNAMIC_WORK_LIMIT = 1L << 26;
+
+    // marks a value that cannot be made in a coin system table
+    private static final int INFEASIBLE = Integer.MAX_VALUE;
+
+    // stock of a coin with no limit given
+    private static final int UNLIMITED = Integer.MAX_VALUE;
+
+    // lines with limited stock are solved when value*ncoins is within
+    // this many steps. The tables take 4 bytes a step.
+    private static final long BOUNDED_WORK_LIMIT = 1L << 24;
+
+    // ints of bounded tables a Change keeps between lines, 1MB
+    private static final long BOUNDED_KEEP = 1L << 18;
+
+    // searches for amounts up to CUTOFF_BITS use a bitset, of at most
+    // CUTOFF_BITS/8 bytes. Larger ones use a hashed set, which stops
+    // taking entries at CUTOFF_ENTRIES so that its size is also bounded.
+    private static final int CUTOFF_BITS = 1 << 24;
+    private static final int CUTOFF_ENTRIES = 1 << 20;
+
+    // nodes a search visits alone before sharing the rest among the
+    // cores, if there are any free
+    private static final int SEARCH_ALONE = 1 << 20;
+
+    // changeMaker frames: ints per entry, and the states of the top frame
+    // of a run, which is taking its coin or skipping it, having or not
+    // solved by taking it.
+    private static final int FRAME = 4;
+    private static final int TAKING = 0;
+    private static final int SKIPPING = 1;
+    private static final int SOLVED_TAKING = 2;
+
+    // coin systems seen recently, least recently used first.
+    private static final LinkedHashMap<CoinKey, CoinSystem> _systems =
+        new LinkedHashMap<CoinKey, CoinSystem>(64, 0.75f, true);
+
+    // bytes held by `_systems' and the most it may hold
+    private static long     _systemBytes;
+    private static final long SYSTEM_BYTES_LIMIT = 64L << 20;
+
+    // cache statistics
+    private static long     _systemHits;
+    private static long     _systemMisses;
+
+    // outcomes of lines solved before, by their text. Each is the status
+    // followed by the coin and count of each coin used.
+    private static final ResultCache<int[]> _results = new ResultCache<int[]>("change");
+
+    // names of the engines, as in metrics and traces
+    private static final String[] ENGINES = { "greedy", "search", "dynamic", "bounded" };
+
+    // solve time for each engine, and the effort and cutoff table size
+    // of searches
+    private static final Histogram[] _time =
+        { new Histogram(), new Histogram(), new Histogram(), new Histogram() };
+    private static final Histogram _nodes = new Histogram();
+    private static final Histogram _cutoffHits = new Histogram();
+    private static final Histogram _cutoffBytes = new Histogram();
+
+    private static final class Histogram
+    {
+        // counts of recorded values by power of two. Bucket k holds
+        // values up to 2^k - 1, and from 2^(k-1) when k > 0.
+        private final AtomicLongArray _buckets = new AtomicLongArray(65);
+        private final AtomicLong      _sum = new AtomicLong();
+
+        void record(long v)
+        {
+            _buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+            _sum.addAndGet(v);
+        }
+
+        void append(StringBuilder sb, String name, String engine)
+        {
+            // add in the Prometheus text format, with cumulative buckets
+            // up to the highest in use.
+            int top = 0;
+            for (int k = 0; k < 65; ++k)
+                if (_buckets.get(k) != 0) top = k;
+
+            long n = 0;
+            for (int k = 0; k <= top; ++k)
+            {
+                n += _buckets.get(k);
+                sb.append(name).append("_bucket{engine=\"").append(engine)
+                    .append("\",le=\"").append(k == 64 ? Long.MAX_VALUE : (1L << k) - 1)
+                    .append("\"} ").append(n).append('\n');
+            }
+            sb.append(name).append("_bucket{engine=\"").append(engine)
+                .append("\",le=\"+Inf\"} ").append(n).append('\n');
+            sb.append(name).append("_sum{engine=\"").append(engine)
+                .append("\"} ").append(_sum.get()).append('\n');
+            sb.append(name).append("_count{engine=\"").append(engine)
+                .append("\"} ").append(n).append('\n');
+        }
+    }
+
+    private static final class CoinKey
+    {
+        // sorted, normalised coin denominations as a cache key. The key
+        // is the first `_n' of `_coins', so that a probe can be pointed
+        // at a working buffer without copying it.
+        int[] _coins;
+        int   _n;
+        int   _hash;
+
+        CoinKey set(int[] coins, int n)
+        {
+            int h = 1;
+            for (int i = 0; i < n; ++i) h = 31*h + coins[i];
+            _coins = coins;
+            _n = n;
+            _hash = h;
+            return this;
+        }
+
+        public int hashCode() { return _hash; }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof CoinKey)) return false;
+            CoinKey k = (CoinKey)o;
+            if (_hash != k._hash || _n != k._n) return false;
+            for (int i = 0; i < _n; ++i)
+                if (_coins[i] != k._coins[i]) return false;
+            return true;
+        }
+    }
+
+    private static final class IntSet
+    {
+        // open hashed set of non-negative ints, stored plus one so that
+        // zero marks an empty slot. Holds at most `_max' values, after
+        // which adds are ignored.
+        private int[]       _slots = new int[1024];
+        private int         _size;
+        private final int   _max;
+
+        IntSet(int max)
+        {
+            _max = max;
+        }
+
+        private static int hash(int v)
+        {
+            int h = v * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        boolean contains(int v)
+        {
+            int mask = _slots.length - 1;
+            for (int i = hash(v) & mask, s; (s = _slots[i]) != 0; i = (i + 1) & mask)
+                if (s == v + 1) return true;
+            return false;
+        }
+
+        void add(int v)
+        {
+            if (_size >= _max) return;
+            int mask = _slots.length - 1;
+            int i = hash(v) & mask;
+            for (int s; (s = _slots[i]) != 0; i = (i + 1) & mask)
+                if (s == v + 1) return;
+            _slots[i] = v + 1;
+
+            // keep at most half full
+            if (2*++_size > _slots.length)
+            {
+                int[] old = _slots;
+                _slots = new int[2*old.length];
+                mask = _slots.length - 1;
+                for (int s : old)
+                {
+                    if (s == 0) continue;
+                    int j = hash(s - 1) & mask;
+                    while (_slots[j] != 0) j = (j + 1) & mask;
+                    _slots[j] = s;
+                }
+            }
+        }
+
+        void clear()
+        {
+            if (_size > 0) Arrays.fill(_slots, 0);
+            _size = 0;
+        }
+
+        long footprint()
+        {
+            return 4L*_slots.length;
+        }
+    }
+
+    private static final class CoinSystem
+    {
+        // a coin system shared between requests, with its canonical
+        // test result and a table of optimal solutions by value that is
+        // extended as larger values are asked for.
+
+        // the coin denominations, descending
+        final int[]     _coins;
+
+        // greedy is optimal for all values below this, Integer.MAX_VALUE
+        // if canonical
+        final int       _greedyBelow;
+
+        // an optimal solution has fewer than c0 coins other than the
+        // highest, c0, as any c0 coins have a subset summing to a multiple
+        // of c0 that fewer c0 coins would replace. So those coins come to
+        // at most (c0 - 1)*c1, and the best solution for any higher value
+        // is one more c0 than that for the value c0 less. The table need
+        // only reach this value.
+        final long      _reduce;
+
+        // least number of coins to make each value below `_size', or
+        // INFEASIBLE.
+        private int[]   _least = new int[] { 0 };
+
+        // index of the highest coin in the best solution for each value
+        // below `_size', or -1.
+        private int[]   _first = new int[] { -1 };
+        private int     _size = 1;
+
+        // whether this is in `_systems', and the bytes counted for it in
+        // `_systemBytes' if so. Guarded by `_systems'.
+        private boolean _cached;
+        private long    _charged;
+
+        CoinSystem(int[] coins, int greedyBelow)
+        {
+            _coins = coins;
+            _greedyBelow = greedyBelow;
+            _reduce = coins.length < 2 ? 0 : (coins[0] - 1L)*coins[1];
+        }
+
+        long footprint()
+        {
+            // approximate bytes held by this entry
+            return 64 + 4L*_coins.length + 8L*_least.length;
+        }
+
+        synchronized boolean solve(int val, int[] sol)
+        {
+            // find the optimal solution for `val' into `sol', extending the
+            // table if needed. Afterwards this takes a step per coin in the
+            // answer.
+            // return false if `val' cannot be made.
+            int k = 0;
+            if (val > _reduce)
+            {
+                // take the highest coins down into the table's range
+                k = (int)((val - _reduce + _coins[0] - 1)/_coins[0]);
+                val -= k*_coins[0];
+            }
+
+            if (val >= _size) extend(val);
+            if (_least[val] == INFEASIBLE) return false;
+
+            // removing the highest coin from a best solution leaves the
+            // best solution for the remainder, so follow the chain.
+            for (int v = val; v > 0; v -= _coins[_first[v]]) ++sol[_first[v]];
+            sol[0] += k;
+            return true;
+        }
+
+        private void extend(int val)
+        {
+            // Bottom-up dynamic programming method, O(val*ncoins).
+            //
+            // fill in the table up to at least `val'. The running time
+            // depends only on the values filled and the number of coins.
+            int m = _coins.length;
+            int n = (int)Math.max(val + 1L,
+                                  Math.min(Math.min(2L*_size, DYNAMIC_WORK_LIMIT/m), _reduce + 1));
+            _least = Arrays.copyOf(_least, n);
+            _first = Arrays.copyOf(_first, n);
+
+            for (int v = _size; v < n; ++v)
+            {
+                // try each coin not exceeding `v', smallest first, so that
+                // of equally good coins the highest is kept. higher
+                // denominations then take precedence.
+                int best = INFEASIBLE;
+                int fi = -1;
+                for (int i = m - 1; i >= 0 && _coins[i] <= v; --i)
+                {
+                    int c = _least[v - _coins[i]];
+                    if (c <= best && c != INFEASIBLE)
+                    {
+                        best = c;
+                        fi = i;
+                    }
+                }
+                _least[v] = best == INFEASIBLE ? INFEASIBLE : best + 1;
+                _first[v] = fi;
+            }
+            _size = n;
+            resized(this, footprint());
+        }
+    }
+
+    public static long systemCacheHits()
+    {
+        synchronized (_systems) { return _systemHits; }
+    }
+
+    public static long systemCacheMisses()
+    {
+        synchronized (_systems) { return _systemMisses; }
+    }
 
-    private static int coinCount(int[] s)
+    public static String metrics()
     {
-        // count the number of coins in the (partial) solution.
-        int c = 0;
-        for (int value : s) c += value;
-        return c;
+        // solver statistics since start up in the Prometheus text format.
+        // Times are in nanoseconds.
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP change_solve_nanoseconds time to solve a line\n");
+        sb.append("# TYPE change_solve_nanoseconds histogram\n");
+        for (int i = 0; i < ENGINES.length; ++i)
+            _time[i].append(sb, "change_solve_nanoseconds", ENGINES[i]);
+
+        sb.append("# HELP change_search_nodes nodes visited by a search\n");
+        sb.append("# TYPE change_search_nodes histogram\n");
+        _nodes.append(sb, "change_search_nodes", ENGINES[SEARCH]);
+
+        sb.append("# HELP change_cutoff_hits branches skipped by a search through its cutoff table\n");
+        sb.append("# TYPE change_cutoff_hits histogram\n");
+        _cutoffHits.append(sb, "change_cutoff_hits", ENGINES[SEARCH]);
+
+        sb.append("# HELP change_cutoff_bytes size of the cutoff table of a search\n");
+        sb.append("# TYPE change_cutoff_bytes histogram\n");
+        _cutoffBytes.append(sb, "change_cutoff_bytes", ENGINES[SEARCH]);
+
+        long hits, misses, bytes;
+        synchronized (_systems)
+        {
+            hits = _systemHits;
+            misses = _systemMisses;
+            bytes = _systemBytes;
+        }
+        sb.append("# TYPE change_system_cache_hits counter\n");
+        sb.append("change_system_cache_hits ").append(hits).append('\n');
+        sb.append("# TYPE change_system_cache_misses counter\n");
+        sb.append("change_system_cache_misses ").append(misses).append('\n');
+        sb.append("# TYPE change_system_cache_bytes gauge\n");
+        sb.append("change_system_cache_bytes ").append(bytes).append('\n');
+        return sb.toString();
+    }
+
+    public void setTrace(StringBuilder trace)
+    {
+        // add a line to `trace' for each line solved, giving the engine,
+        // time taken and for searches their effort. The results are not
+        // affected.
+        _trace = trace;
+    }
+
+    private static void resized(CoinSystem cs, long bytes)
+    {
+        // account for `cs' now holding `bytes' and evict the least
+        // recently used systems while over the limit. `cs' itself is
+        // kept. Systems already evicted are not counted. Each system is
+        // charged what it was last counted as, so that the total stays
+        // exact while other systems grow.
+        synchronized (_systems)
+        {
+            if (!cs._cached) return;
+            _systemBytes += bytes - cs._charged;
+            cs._charged = bytes;
+            Iterator<CoinSystem> it = _systems.values().iterator();
+            while (_systemBytes > SYSTEM_BYTES_LIMIT && it.hasNext())
+            {
+                CoinSystem e = it.next();
+                if (e != cs)
+                {
+                    _systemBytes -= e._charged;
+                    e._cached = false;
+                    it.remove();
+                }
+            }
+        }
     }
 
     private int upperLimit(int val)
@@ -126,50 +596,100 @@ public class Change
         return v == 0;
     }
 
-    private boolean mnt()
+    private static int greedyBound(int[] coins)
     {
-        // Canonical test of Magazine-Nemhauser-Trotter, 1975
+        // Canonical test of Pearson, 2005, O(ncoins^3)
+        //
+        // return the smallest value for which the greedy method does not
+        // find the optimal answer, or Integer.MAX_VALUE if there is none,
+        // ie the system is canonical.
+        //
+        // the smallest counterexample w has a best solution which, for
+        // some i <= j, is the greedy solution of coins[i-1] - 1 in the
+        // coins above j, with one more of coin j and none below. So only
+        // these n^2 candidates need trying against greedy.
+        //
+        // without a 1 there are values greedy cannot make, and these
+        // are not searched for. Greedy is still right below the
+        // smallest coin plus one.
         //
-        // true if coin system is canonical. ie the greedy method
-        // finds the optimal answer for all values.
-        // 
         // assume `coins' array descending
-        int n = _coins.length;
-        if (n < 2) return true;
+        int n = coins.length;
+        if (n < 2) return Integer.MAX_VALUE;
+        if (coins[n-1] != 1) return coins[n-1] + 1;
 
-        boolean res = false;
-        if (_coins[n-1] == 1)
+        long best = Long.MAX_VALUE;
+        for (int i = 1; i < n; ++i)
         {
-            res = true;
-            if (n >= 3) 
+            // value and count of the greedy solution of coins[i-1] - 1
+            // in coins i..j-1
+            long v = 0;
+            long c = 0;
+            long r = coins[i-1] - 1;
+            for (int j = i; j < n; ++j)
             {
-                int[] sol = new int[n];
-                for (int t = 1; t < n; ++t)
-                {
-                    int ct1 = _coins[t-1];
-                    int ct = _coins[t];
-                    int mt = ct1/ct;
-                    int st = mt*ct;
-                    if (ct1 != st)
-                    {
-                        st += ct;
-                        ++mt;
-                    }
-                    greedy(st - ct1, sol);
-                    if (coinCount(sol) >= mt)
-                    {
-                        res = false;
-                        break;
-                    }
-                }
+                long g = r/coins[j];
+                r -= g*coins[j];
+
+                long w = v + (g + 1)*coins[j];
+                if (w < best && greedyCount(coins, w) > c + g + 1) best = w;
+
+                v += g*coins[j];
+                c += g;
             }
         }
-        return res;
+        return (int)Math.min(best, Integer.MAX_VALUE);
+    }
+
+    private static long greedyCount(int[] coins, long val)
+    {
+        // number of coins the greedy method takes to make `val'
+        long n = 0;
+        for (int ci : coins)
+        {
+            n += val/ci;
+            val %= ci;
+        }
+        return n;
+    }
+
+    private void clearCutoff(int val)
+    {
+        // prepare the cutoff for a search for `val', as a bitset where
+        // it is small enough.
+        _dense = val < CUTOFF_BITS;
+        if (_dense)
+        {
+            int n = (val >>> 6) + 1;
+            if (n > _cutoff.length)
+                _cutoff = new long[Math.min(Math.max(n, 2*_cutoff.length), CUTOFF_BITS >>> 6)];
+            else Arrays.fill(_cutoff, 0, n, 0);
+        }
+        else if (_cutoffSet == null) _cutoffSet = new IntSet(CUTOFF_ENTRIES);
+        else _cutoffSet.clear();
+    }
+
+    boolean infeasible(int val)
+    {
+        // also read by ParallelSearch, once the search has paused
+        if (_dense) return (_cutoff[val >>> 6] & (1L << val)) != 0;
+        return _cutoffSet.contains(val);
+    }
+
+    private void setInfeasible(int val)
+    {
+        if (_dense) _cutoff[val >>> 6] |= 1L << val;
+        else _cutoffSet.add(val);
+    }
+
+    private long cutoffBytes()
+    {
+        return (_dense ? 8L*_cutoff.length : _cutoffSet.footprint()) + _parallelBytes;
     }
 
     private boolean changeMaker(int i, int val)
     {
-        // Truncating Recursive method.
+        // Truncating tree search.
         // 
         // A tree search is made, where at each point, either the next
         // coin is taken or that coin is skipped.
@@ -179,160 +699,917 @@ public class Change
         // proven to lead to, at best, inferior solutions. The result is 
         // a method faster than the "usual" dynamic programming 
         // O(val*ncoins) method.
+        //
+        // The search takes a coin at each level, so it goes as deep as
+        // the number of coins in a solution, eg a million for 1:9 and
+        // ten million. Rather than recursing, its frames are kept in
+        // `_frames'. Each frame is either taking its coin, so waiting on
+        // the value less that coin, or skipping it, so waiting on the
+        // next coin. A run of frames taking the same coin differ only in
+        // value, so is kept as one entry of FRAME ints: the coin index,
+        // the value of the top frame, the number of frames in the run
+        // and the state of the top frame, the others all taking. Coin
+        // indices increase up the stack, so there are at most `m'
+        // entries however deep the search.
         
-        int m = _coins.length;
+        int[] coins = _coins;
+        int m = coins.length;
+        int[] s = _s;
+        if (_frames.length < FRAME*m) _frames = new int[FRAME*m];
+        int[] f = _frames;
 
-        ++_count;
+        int top = -FRAME;       // the top entry of `f'
+        int c = 0;              // coins taken, ie the sum of `s'
+        int limit = _limit;
+        int count = _count;
+        boolean take = false;   // entering a frame for a coin taken
 
+        for (;;)
+        {
+            // enter the frame for `val' from coin `i'. It either ends at
+            // once, with result `r', or is pushed and goes on to a branch.
+            boolean r = false;
 
-        // find the nest coin not exceeding current value.
-        while (_coins[i] > val)
+            // check now and then whether to give up, or to share out
+            // the rest of a long search
+            if ((++count & 0xFFFF) == 0)
+            {
+                checkCancelled();
+                if (count >= _pause)
+                {
+                    _count = count;
+                    return searchParallel(top, i, val, c, take, limit);
+                }
+            }
+
+            // find the next coin not exceeding current value.
+            while (i < m && coins[i] > val) ++i;
+            if (i < m)
+            {
+                boolean more = i < m-1;
+                int ci = coins[i];
+                int ni = val/ci;
+                int lb = ni;
+
+                // calculate a lower bound to the number of coins not yet
+                // added to solution.
+                if (more)
+                {
+                    int v = val - lb*ci;
+                    int q = v/coins[i+1];
+                    int rem = v - q*coins[i+1];
+                    if (rem > 0) ++q;
+                    lb += q;
+                    ni = 1;
+                }
+
+                // if the coins taken plus the lower bound to the number
+                // of coins not yet added is inferior to the current best
+                // limit, this branch cannot work and is truncated.
+                if (lb + c < limit)
+                {
+                    if (val == ni*ci)
+                    {
+                        // a new solution. update best limit and keep a
+                        // copy of this solution.
+                        limit = c + ni;
+                        System.arraycopy(s, 0, _solution, 0, m);
+                        _solution[i] += ni;
+                        r = true;
+                    }
+                    else if (more)
+                    {
+                        // push the frame, on the run of its parent if
+                        // that took the same coin.
+                        if (take && f[top] == i)
+                        {
+                            f[top+1] = val;
+                            ++f[top+2];
+                        }
+                        else
+                        {
+                            top += FRAME;
+                            f[top] = i;
+                            f[top+1] = val;
+                            f[top+2] = 1;
+                        }
+
+                        // try taking next coin, else leaving it
+                        if (!infeasible(val - ci))
+                        {
+                            f[top+3] = TAKING;
+                            ++s[i];
+                            ++c;
+                            val -= ci;
+                            take = true;
+                        }
+                        else
+                        {
+                            ++_hits;
+                            f[top+3] = SKIPPING;
+                            ++i;
+                            take = false;
+                        }
+                        continue;
+                    }
+                }
+            }
+            if (!r) setInfeasible(val);
+
+            // return `r' down the stack to the first frame with a branch
+            // still to try.
+            for (;;)
+            {
+                if (top < 0)
+                {
+                    _limit = limit;
+                    _count = count;
+                    return r;
+                }
+
+                i = f[top];
+                val = f[top+1];
+                int state = f[top+3];
+                if (state == TAKING)
+                {
+                    // put back the coin taken and try leaving it
+                    --s[i];
+                    --c;
+                    f[top+3] = r ? SKIPPING|SOLVED_TAKING : SKIPPING;
+                    ++i;
+                    take = false;
+                    break;
+                }
+
+                // both branches are done
+                if ((state & SOLVED_TAKING) != 0) r = true;
+                if (!r) setInfeasible(val);
+
+                // pop the frame. The one below in its run was taking.
+                if (f[top+2] > 1)
+                {
+                    f[top+1] = val + coins[i];
+                    --f[top+2];
+                    f[top+3] = TAKING;
+                }
+                else top -= FRAME;
+            }
+        }
+    }
+
+    private boolean searchParallel(int top, int i, int val, int c, boolean take, int limit)
+    {
+        // carry on changeMaker's search, paused about to enter the frame
+        // for `val' from coin `i' with its frames up to entry `top', in
+        // ParallelSearch. A solution was found before the pause if
+        // `limit' has come down from `_limit'.
+        ParallelSearch p = new ParallelSearch(this, _coins, limit);
+        boolean found = p.solve(_frames, top, i, val, _s, c, take, _solution);
+        boolean ok = found || limit < _limit;
+        _limit = p.limit();
+        _count = (int)Math.min(_count + p.nodes(), Integer.MAX_VALUE);
+        _hits = (int)Math.min(_hits + p.hits(), Integer.MAX_VALUE);
+        _parallelBytes = p.cutoffBytes();
+        return ok;
+    }
+
+    private CoinSystem coinSystem()
+    {
+        // find the cached system for the `_ncoins' coins in `_buf', or
+        // test and add a new one. A hit allocates nothing.
+        synchronized (_systems)
         {
-            if (++i >= m)
+            CoinSystem cs = _systems.get(_probe.set(_buf, _ncoins));
+            if (cs != null)
             {
-                _cutoff[val] = -1;
-                return false;
+                ++_systemHits;
+                return cs;
             }
+            ++_systemMisses;
         }
 
-        boolean more = i < m-1;
-        int ci = _coins[i];
-        int ni = val/ci;
-        int lb = ni;
+        _coins = Arrays.copyOf(_buf, _ncoins);
+        CoinKey key = new CoinKey().set(_coins, _ncoins);
+        CoinSystem cs = new CoinSystem(_coins, greedyBound(_coins));
+        synchronized (_systems)
+        {
+            // another request may have added it meanwhile
+            CoinSystem e = _systems.get(key);
+            if (e != null) return e;
+            _systems.put(key, cs);
+            cs._cached = true;
+            resized(cs, cs.footprint());
+        }
+        return cs;
+    }
+
+    private int engine(CoinSystem cs, int val)
+    {
+        // choose how to solve for `val' with the current coins.
+        //
+        // greedy is optimal for canonical systems, and in others below
+        // their smallest counterexample. Otherwise the dynamic method has
+        // a predictable cost of ncoins steps per value in its table, and
+        // is used whenever that is affordable. Its table never needs to
+        // go beyond the system's `_reduce'. The search has no such bound,
+        // but usually truncates most of its tree, so takes over when
+        // filling the table would cost too much.
+        if (val < cs._greedyBelow) return GREEDY;
+        if ((Math.min(val, cs._reduce) + 1) * _coins.length <= DYNAMIC_WORK_LIMIT)
+            return DYNAMIC;
+        return SEARCH;
+    }
 
-        // calculate a lower bound to the number of coins not yet added
-        // to solution.
-        if (more)
+    private boolean parseInt(char[] c, int s, int e)
+    {
+        // scan a decimal integer from c[s..e) into `_int', ignoring
+        // surrounding white space. An optional sign is allowed, as for
+        // Integer.parseInt. Return false if it is not a number or does
+        // not fit.
+        while (s < e && c[s] <= ' ') ++s;
+        while (e > s && c[e-1] <= ' ') --e;
+
+        boolean neg = false;
+        if (s < e && (c[s] == '-' || c[s] == '+')) neg = c[s++] == '-';
+        if (s == e) return false;
+
+        long v = 0;
+        while (s < e)
         {
-            int v = val - lb*ci;
-            int q = v/_coins[i+1];
-            int r = v - q*_coins[i+1];
-            if (r > 0) ++q;
-            lb += q;
-            ni = 1;
+            int d = c[s++] - '0';
+            if (d < 0 || d > 9) return false;
+            v = v*10 + d;
+            if (v > 1L << 31) return false;
         }
+        if (neg) v = -v;
+        if (v > Integer.MAX_VALUE) return false;
+        _int = (int)v;
+        return true;
+    }
+
+    private boolean parseLine(char[] c, int s, int e)
+    {
+        // scan a line of the form `coin,coin,...:value' from c[s..e)
+        // into `_buf', `_ncoins' and `_val' in one pass and without
+        // allocating. Coins that are not positive are dropped.
+        //
+        // a coin may be given a stock as `coin*count', making the line
+        // `_bounded'. A stock of zero drops the coin.
+        //
+        // return false if the line is malformed. As when the line was
+        // split at `:' and `,', trailing commas are allowed and anything
+        // after a second `:' is ignored.
+        int colon = s;
+        while (colon < e && c[colon] != ':') ++colon;
+        if (colon == e || colon == s) return false;
 
-        // if the coin count of the current partial solution plus the
-        // lower bound to the number of coins not yet added is inferior
-        // to the current best limit, this branch cannot work and is
-        // truncated.
-        int c = coinCount(_s);
-        if (lb + c >= _limit)
+        // the value runs to the next colon, if any
+        int ve = colon + 1;
+        while (ve < e && c[ve] != ':') ++ve;
+        if (!parseInt(c, colon + 1, ve)) return false;
+        _val = _int;
+
+        // drop trailing commas. A list of only commas has no coins.
+        int ce = colon;
+        while (ce > s && c[ce-1] == ',') --ce;
+
+        _ncoins = 0;
+        _bounded = false;
+        for (int p = s; p < ce; ++p)
         {
-            _cutoff[val] = -1;
-            return false;
+            int q = p;
+            int star = -1;
+            for (; q < ce && c[q] != ','; ++q)
+                if (c[q] == '*' && star < 0) star = q;
+
+            int stock = UNLIMITED;
+            if (star >= 0)
+            {
+                if (!parseInt(c, star + 1, q) || _int < 0) return false;
+                stock = _int;
+                _bounded = true;
+            }
+            if (!parseInt(c, p, star >= 0 ? star : q)) return false;
+            if (_int > 0 && stock > 0) // ignore bent coins
+            {
+                if (_ncoins == _buf.length)
+                {
+                    _buf = Arrays.copyOf(_buf, 2*_ncoins);
+                    _stock = Arrays.copyOf(_stock, 2*_ncoins);
+                }
+                _stock[_ncoins] = stock;
+                _buf[_ncoins++] = _int;
+            }
+            p = q;
+        }
+        return true;
+    }
+
+    private void sortCoins()
+    {
+        // put the coins of `_buf' in descending order, dropping any
+        // repeats so that equal systems share a cache entry.
+        int n = _ncoins;
+        if (n == 0) return;
+        if (_bounded)
+        {
+            sortStock();
+            return;
+        }
+        Arrays.sort(_buf, 0, n);
+
+        int m = 1;
+        for (int i = 1; i < n; ++i)
+            if (_buf[i] != _buf[m-1]) _buf[m++] = _buf[i];
+
+        for (int i = 0, j = m - 1; i < j; ++i, --j)
+        {
+            int t = _buf[i];
+            _buf[i] = _buf[j];
+            _buf[j] = t;
+        }
+        _ncoins = m;
+    }
+
+    private void sortStock()
+    {
+        // as sortCoins, keeping each coin's stock with it. The stocks of
+        // repeated coins are added.
+        int n = _ncoins;
+        if (_pack.length < n) _pack = new long[Math.max(n, 2*_pack.length)];
+        for (int i = 0; i < n; ++i)
+            _pack[i] = ((long)_buf[i] << 32) | _stock[i];
+        Arrays.sort(_pack, 0, n);
+
+        int m = 0;
+        for (int i = n - 1; i >= 0; --i)
+        {
+            int coin = (int)(_pack[i] >>> 32);
+            int stock = (int)_pack[i];
+            if (m > 0 && _buf[m-1] == coin)
+            {
+                long t = (long)_stock[m-1] + stock;
+                _stock[m-1] = (int)Math.min(t, UNLIMITED);
+            }
+            else
+            {
+                _buf[m] = coin;
+                _stock[m++] = stock;
+            }
+        }
+        _ncoins = m;
+    }
 
+    private boolean bounded(int val, int m)
+    {
+        // make `val' from the `m' coins of `_buf' descending, with at most
+        // `_stock' of each, into `_solution'. Return false if it cannot
+        // be made.
+        //
+        // dynamic programming adds the coins smallest first. Adding coin
+        // c with stock b takes the fewest coins for v to
+        //
+        //     min over 0 <= k <= b of f[v - kc] + k
+        //
+        // which for each residue of v mod c is a sliding window minimum
+        // of f[r + ic] - i over the last b+1 values of i. A monotone queue
+        // finds these in O(val) per coin, however large the stock.
+        //
+        // `take[l][v]' holds the count chosen of the l'th smallest coin,
+        // the most of those giving the fewest coins. Reading these back
+        // from the biggest coin gives the fewest coins with higher
+        // denominations taking precedence.
+        int n = val + 1;
+        if (_boundF.length < n)
+        {
+            _boundInts += 3L*(n - _boundF.length);
+            _boundF = new int[n];
+            _boundG = new int[n];
+            _boundQueue = new int[n];
         }
+        if (_boundTake.length < m) _boundTake = Arrays.copyOf(_boundTake, m);
+        int[] f = _boundF;
+        int[] g = _boundG;
+        int[] queue = _boundQueue;
+        int[][] take = _boundTake;
 
-        // have we found a new solution?
-        // if so, update best limit and keep copy of this solution.
-        if (val == ni*ci)
+        try
         {
-            _limit = c + ni;
+            Arrays.fill(f, 0, n, INFEASIBLE);
+            f[0] = 0;
+            for (int l = 0; l < m; ++l)
+            {
+                if (take[l] == null || take[l].length < n)
+                {
+                    _boundInts += n - (take[l] == null ? 0 : take[l].length);
+                    take[l] = new int[n];
+                }
+                layer(f, g, take[l], _buf[m-1-l], _stock[m-1-l], queue, n);
+                int[] t = f;
+                f = g;
+                g = t;
+            }
 
-            // update best solution
-            System.arraycopy(_s, 0, _solution, 0, m);
-            _solution[i] += ni;
+            if (f[val] == INFEASIBLE) return false;
+            for (int l = m - 1, v = val; l >= 0; --l)
+            {
+                int q = take[l][v];
+                _solution[m-1-l] = q;
+                v -= q*_buf[m-1-l];
+            }
             return true;
         }
+        finally
+        {
+            if (_boundInts > BOUNDED_KEEP) releaseBounded();
+        }
+    }
+
+    private void releaseBounded()
+    {
+        // let go of the bounded engine's tables after an oversized line
+        _boundF = new int[0];
+        _boundG = new int[0];
+        _boundQueue = new int[0];
+        _boundTake = new int[0][];
+        _boundInts = 0;
+    }
 
-        // consider now branching either taking the next coin or skipping it.
-        boolean s2 = false;
-        if (more)
+    private static void layer(int[] f, int[] g, int[] k, int c, int b, int[] queue, int n)
+    {
+        // add coin `c' with stock `b' to the fewest coins table `f',
+        // giving `g' and the counts taken in `k' for values below `n'.
+        // `queue' is scratch at least `n' long.
+        for (int r = 0; r < c && r < n; ++r)
         {
-            // try taking next coin
-            if (_cutoff[val - ci] >= 0)
+            // queue[head..tail) holds indices i of this residue in
+            // increasing order with f[r + ic] - i strictly increasing,
+            // so the front is the least, and the oldest of equals.
+            int head = 0;
+            int tail = 0;
+            for (int i = 0, v = r; v < n; ++i, v += c)
             {
-                ++_s[i];
-                s2 = changeMaker(i, val - ci);
-                --_s[i];
+                int fv = f[v];
+                if (fv != INFEASIBLE)
+                {
+                    while (tail > head && f[r + queue[tail-1]*c] - queue[tail-1] > fv - i)
+                        --tail;
+                    queue[tail++] = i;
+                }
+                while (tail > head && i - queue[head] > b) ++head;
+
+                if (tail > head)
+                {
+                    int j = queue[head];
+                    g[v] = f[r + j*c] - j + i;
+                    k[v] = i - j;
+                }
+                else
+                {
+                    g[v] = INFEASIBLE;
+                    k[v] = 0;
+                }
             }
+        }
+    }
 
-            // try leaving next coin
-            if (changeMaker(i+1, val)) s2 = true;
+    static final class Stock
+    {
+        // change making from a stock of coins that changes between
+        // solves, for values up to `_max'.
+        //
+        // the tables of the bounded engine are kept for every layer, the
+        // l'th layer adding the l'th smallest coin. For values up to
+        // `_max' a coin's stock only matters up to _max/coin, so changes
+        // above that threshold cost nothing. Other changes invalidate the
+        // coin's layer and those above it.
+        //
+        // a layer only looks back to smaller values, so each is valid for
+        // values below `_valid', and is recomputed only as far as the
+        // values asked for. Dispensing mostly uses the big coins, whose
+        // layers are last, and small values are cheap to redo.
+        //
+        // the tables are only as long as the values asked for so far
+        // need, growing by doubling up to `_max'. Their bytes are taken
+        // from `_budget' as they grow, if one is given.
+        //
+        // not thread safe.
+        final int[]         _coins;     // descending
+        final int[]         _stock;
+        final int           _max;
+        private final int[][] _f;
+        private final int[][] _take;
+        private int[]       _base = new int[0];
+        private int[]       _queue = new int[0];
+        private int         _size;
+        private final AtomicLong _budget;
+
+        // each layer is correct below its `_valid'. These never increase
+        // with the layer.
+        private final int[] _valid;
+
+        Stock(int[] coins, int[] stock, int max, AtomicLong budget)
+        {
+            // `coins' distinct and descending, `stock' not negative.
+            int m = coins.length;
+            if ((long)(max + 1)*m > BOUNDED_WORK_LIMIT)
+                throw new IllegalArgumentException("too many coins for value " + max);
+
+            _coins = coins.clone();
+            _stock = stock.clone();
+            _max = max;
+            _f = new int[m][0];
+            _take = new int[m][0];
+            _valid = new int[m];
+            _budget = budget;
         }
 
-        if (!s2)
-            _cutoff[val] = -1;
+        long footprint()
+        {
+            // bytes held by the tables
+            return 4L*(2*_coins.length + 2)*_size;
+        }
 
-        return s2;
+        void release()
+        {
+            // give the tables' bytes back to `_budget', once the stock
+            // is no longer used.
+            if (_budget != null) _budget.addAndGet(footprint());
+        }
+
+        void grow(int n)
+        {
+            // make the tables at least `n' long. The valid part of each
+            // layer is kept. Throws IllegalStateException, changing
+            // nothing, if `_budget' cannot cover it.
+            if (n <= _size) return;
+            int size = (int)Math.min(_max + 1L, Math.max(n, 2L*_size));
+            long bytes = 4L*(2*_coins.length + 2)*(size - _size);
+            if (_budget != null)
+            {
+                long free;
+                do
+                {
+                    free = _budget.get();
+                    if (free < bytes) throw new IllegalStateException("out of memory for machines");
+                }
+                while (!_budget.compareAndSet(free, free - bytes));
+            }
+
+            for (int l = 0; l < _f.length; ++l)
+            {
+                _f[l] = Arrays.copyOf(_f[l], size);
+                _take[l] = Arrays.copyOf(_take[l], size);
+            }
+            _base = Arrays.copyOf(_base, size);
+            Arrays.fill(_base, _size, size, INFEASIBLE);
+            _base[0] = 0;
+            _queue = new int[size];
+            _size = size;
+        }
+
+        private int effective(int i)
+        {
+            return Math.min(_stock[i], _max/_coins[i]);
+        }
+
+        void add(int i, int delta)
+        {
+            // change the stock of coin `i' by `delta', not below zero.
+            int e = effective(i);
+            long t = (long)_stock[i] + delta;
+            _stock[i] = (int)Math.max(0, Math.min(t, UNLIMITED));
+            if (effective(i) != e)
+                for (int l = _coins.length - 1 - i; l < _coins.length; ++l) _valid[l] = 0;
+        }
+
+        boolean solve(int val, int[] sol)
+        {
+            // make `val' from the stock into `sol' by coin, as the
+            // bounded engine. The stock is not changed.
+            int m = _coins.length;
+            if (val < 0 || val > _max) return false;
+            if (m == 0) return val == 0;
+
+            // find the first layer not valid for `val' and redo it and
+            // those above, doubling its range so that rising values
+            // cost little in all.
+            int l0 = 0;
+            while (l0 < m && _valid[l0] > val) ++l0;
+            if (l0 < m)
+            {
+                int n = Math.min(_max + 1, Math.max(val + 1, 2*_valid[l0]));
+                if (l0 > 0) n = Math.min(n, _valid[l0-1]);
+                grow(n);
+                for (int l = l0; l < m; ++l)
+                {
+                    layer(l == 0 ? _base : _f[l-1], _f[l], _take[l],
+                          _coins[m-1-l], effective(m-1-l), _queue, n);
+                    _valid[l] = n;
+                }
+            }
+
+            if (_f[m-1][val] == INFEASIBLE) return false;
+            for (int l = m - 1, v = val; l >= 0; --l)
+            {
+                int q = _take[l][v];
+                sol[m-1-l] = q;
+                v -= q*_coins[m-1-l];
+            }
+            return true;
+        }
     }
 
-    private void handleLine(String line)
+    public int solve(char[] line, int s, int e)
     {
-        // split off the list of coin values from the amount to make
-        String[] inputs = line.split(":");
+        // solve the line in line[s..e) and return SOLVED or the reason
+        // it could not be. Once solved, the change is count(i) of coin(i)
+        // for i below coins(), in descending order of coin. For callers
+        // that read records of their own, as the JSON API.
+        checkCancelled();
+        if (!_results.enabled()) return solveLine(line, s, e);
 
-        // `val' is the amount to make
-        int val = Integer.parseInt(inputs[1].trim());
+        int[] r = _results.get(_key.clear().add(line, s, e));
+        if (r != null) return cached(r, line, s, e);
 
-        // split the coin denominations and sort them in descending order
-        String[] coinStr = inputs[0].split(",");
-        List<Integer> coinInt = new ArrayList<>();
-        for (String aCoinStr : coinStr)
+        int status = solveLine(line, s, e);
+        int n = 0;
+        if (status == SOLVED)
+            for (int i = 0; i < _ncoins; ++i)
+                if (_solution[i] > 0) ++n;
+
+        r = new int[1 + 2*n];
+        r[0] = status;
+        for (int i = 0, k = 1; k < r.length; ++i)
         {
-            int ci = Integer.parseInt(aCoinStr.trim());
-            if (ci > 0) coinInt.add(ci); // ignore bent coins
+            if (_solution[i] > 0)
+            {
+                r[k++] = _coins[i];
+                r[k++] = _solution[i];
+            }
         }
+        _results.put(_key, r, 16 + 4*r.length);
+        return status;
+    }
+
+    public static void initResults(Map<String, String> params)
+    {
+        // size the result cache from the solver parameters.
+        _results.init(params);
+    }
+
+    private int cached(int[] r, char[] line, int s, int e)
+    {
+        // take `r' from `_results' as the outcome of line[s..e). Only the
+        // coins used are given.
+        int n = r.length/2;
+        if (_solution == null || _solution.length < n)
+        {
+            _solution = new int[n];
+            _s = new int[n];
+        }
+        if (_cached.length < n) _cached = new int[n];
+        for (int i = 0; i < n; ++i)
+        {
+            _cached[i] = r[1 + 2*i];
+            _solution[i] = r[2 + 2*i];
+        }
+        _coins = _cached;
+        _ncoins = n;
+
+        if (_trace != null) _trace.append(line, s, e - s).append("\tcache\n");
+        return r[0];
+    }
+
+    private int solveLine(char[] line, int s, int e)
+    {
+        // solve line[s..e) as for solve, without the result cache.
+        if (!parseLine(line, s, e)) return MALFORMED;
+
+        // `val' is the amount to make
+        int val = _val;
 
         boolean ok = false;
-        int m = coinInt.size();
+        sortCoins();
+        int m = _ncoins;
         
-        if (m > 0)
+        if (m > 0 && _bounded)
         {
-            Collections.sort(coinInt, Collections.reverseOrder());
+            // limited stock. Such lines skip the coin system cache, as
+            // the tables depend on the stock, but their results are kept
+            // in `_results' like any other.
+            if ((long)(val + 1)*m > BOUNDED_WORK_LIMIT) return TOO_LARGE;
+
+            if (_solution == null || _solution.length < m)
+            {
+                _solution = new int[m];
+                _s = new int[m];
+            }
+            _coins = _buf;
 
-            // make the array of the coin denominations
-            _coins = new int[m];
-            for (int i = 0; i < m; ++i) _coins[i] = coinInt.get(i);
+            long t = System.nanoTime();
+            ok = val >= 0 && bounded(val, m);
+            record(BOUNDED, System.nanoTime() - t, line, s, e);
+        }
+        else if (m > 0)
+        {
+            // look up the system, testing new ones for being canonical.
+            CoinSystem cs = coinSystem();
+            _coins = cs._coins;
 
-            // create a solution array which has a coin count for each denomination
+            // clear the solution array which has a coin count for each
+            // denomination
             _count = 0;
-            _solution = new int[m];
-            
-            // test to see if this coin system is canonical.
-            ok = mnt();
-
-            if (ok)
+            _hits = 0;
+            if (_solution == null || _solution.length < m)
             {
-                // in canonical systems the greedy solution is optimal
-                greedy(val, _solution);
+                _solution = new int[m];
+                _s = new int[m];
             }
-            else
+            else Arrays.fill(_solution, 0, m, 0);
+            
+            // choose an engine for this value.
+            long t = System.nanoTime();
+            int engine = engine(cs, val);
+            switch (engine)
             {
+            case GREEDY:
+                // in canonical systems the greedy solution is optimal
+                ok = greedy(val, _solution);
+                break;
+            case DYNAMIC:
+                ok = cs.solve(val, _solution);
+                break;
+            default:
                 // otherwise apply truncated recursion
-                _s = new int[m];
-                _cutoff = new int[val + 1];
-
                 // calculate an upper limit for the number of coins in solution
                 _limit = upperLimit(val);
+                Arrays.fill(_s, 0, m, 0);
+                clearCutoff(val);
+
+                // a long search is shared out among the cores when there
+                // are some free
+                _pause = ParallelSearch.available() ? SEARCH_ALONE : Integer.MAX_VALUE;
+                _parallelBytes = 0;
             
                 // perform search
                 ok = changeMaker(0, val);
+                break;
             }
-            
-            if (ok)
+            record(engine, System.nanoTime() - t, line, s, e);
+        }
+        return ok ? SOLVED : NO_SOLUTION;
+    }
+
+    public int coins()
+    {
+        return _ncoins;
+    }
+
+    public int coin(int i)
+    {
+        return _coins[i];
+    }
+
+    public int count(int i)
+    {
+        return _solution[i];
+    }
+
+    private boolean handleLine(char[] line, int s, int e)
+    {
+        // solve the line in line[s..e). Return false if it is malformed.
+        switch (solve(line, s, e))
+        {
+        case MALFORMED:
+            return false;
+        case TOO_LARGE:
+            results.append(line, s, e - s).append(" is too large to solve with limited stock\n");
+            break;
+        case NO_SOLUTION:
+            results.append(line, s, e - s).append(" has no solution\n");
+            break;
+        default:
+            // print out the solution
+            int c = 0;
+            for (int i = 0; i < _ncoins; ++i)
             {
-                // print out the solution
-                int c = 0;
-                for (int i = 0; i < m; ++i)
+                if (_solution[i] > 0)
                 {
-                    if (_solution[i] > 0)
-                    {
-                        if (c++ != 0) results.append(',');
-                        results.append(_coins[i]).append("x").append(_solution[i]);
-                    }
+                    if (c++ != 0) results.append(',');
+                    results.append(_coins[i]).append('x').append(_solution[i]);
                 }
+            }
+            results.append('\n');
+        }
+        return true;
+    }
+
+    private void record(int engine, long ns, char[] line, int s, int e)
+    {
+        // add the solve of line[s..e) to the statistics and trace.
+        long bytes = 0;
+        _time[engine].record(ns);
+        if (engine == SEARCH)
+        {
+            bytes = cutoffBytes();
+            _nodes.record(_count);
+            _cutoffHits.record(_hits);
+            _cutoffBytes.record(bytes);
+        }
+
+        if (_trace != null)
+        {
+            _trace.append(line, s, e - s).append('\t').append(ENGINES[engine])
+                .append(" ns=").append(ns);
+            if (engine == SEARCH)
+                _trace.append(" nodes=").append(_count).append(" hits=").append(_hits)
+                    .append(" bytes=").append(bytes);
+            _trace.append('\n');
+        }
+    }
 
-                // debug
-                //results.append(" trials:").append(_count);
+    private boolean nextLine(Reader in)
+    {
+        // find the next line of input in `_in' without making a string.
+        // Lines end with \n, \r or \r\n as for BufferedReader.readLine.
+        // return false at the end of the input or if it cannot be read.
+        int p = _ip;
+        for (;;)
+        {
+            if (_skipLF && p < _ie)
+            {
+                // the \n of a \r\n pair
+                if (_in[p] == '\n') _ip = ++p;
+                _skipLF = false;
+            }
+
+            while (p < _ie && _in[p] != '\n' && _in[p] != '\r') ++p;
+            if (p < _ie)
+            {
+                _ls = _ip;
+                _le = p;
+                _skipLF = _in[p] == '\r';
+                _ip = p + 1;
+                return true;
+            }
+
+            if (_eof)
+            {
+                // last line has no line end
+                if (_ip == _ie) return false;
+                _ls = _ip;
+                _le = _ie;
+                _ip = _ie;
+                return true;
+            }
 
-                results.append('\n');
+            // move the partial line to the front and read some more,
+            // growing the buffer for long lines.
+            int n = _ie - _ip;
+            if (n == _in.length) _in = Arrays.copyOf(_in, 2*n);
+            else System.arraycopy(_in, _ip, _in, 0, n);
+            _ip = 0;
+            _ie = n;
+            p = n;
+            try
+            {
+                int r = in.read(_in, _ie, _in.length - _ie);
+                if (r < 0) _eof = true;
+                else _ie += r;
+            }
+            catch (IOException e)
+            {
+                results.append("error reading input\n");
+                return false;
             }
         }
+    }
 
-        if (!ok)
-            results.append(line).append(" has no solution\n");
+    private String readLine(BufferedReader in)
+    {
+        // return the next input line, or null at the end of the input
+        // or if it cannot be read.
+        try
+        {
+            return in.readLine();
+        }
+        catch (IOException e)
+        {
+            results.append("error reading input\n");
+            return null;
+        }
+    }
+
+    private void flush(Writer out) throws IOException
+    {
+        // pass any pending results on to `out' and empty the buffer,
+        // copying through `_out' rather than a new string.
+        int n = results.length();
+        if (n > _out.length) _out = new char[Math.max(n, 2*_out.length)];
+        results.getChars(0, n, _out, 0);
+        out.write(_out, 0, n);
+        results.setLength(0);
     }
 
     public String calculate(String arg)
@@ -340,32 +1617,159 @@ public class Change
         // receive input data from web page. Perform calculation and
         // return result to web page as a string.
         
-        BufferedReader in = new BufferedReader(new StringReader(arg));
+        StringWriter out = new StringWriter();
         try
         {
-            String line;
-            while ((line = in.readLine()) != null)
+            calculate(new StringReader(arg), out);
+        }
+        catch (IOException e)
+        {
+            // cannot happen writing to a string
+        }
+
+        // return results to web page.
+        return out.toString();
+    }
+
+    public void calculate(Reader arg, Writer out) throws IOException
+    {
+        // streaming version. Read input from `arg' and write each result
+        // line to `out' as soon as it is produced, so that memory use does
+        // not depend on the size of the input. Lines are scanned in place
+        // so that a run of well formed lines allocates nothing.
+        
+        // start with an empty input buffer
+        _ip = _ie = 0;
+        _eof = false;
+        _skipLF = false;
+
+        while (nextLine(arg))
+        {
+            checkCancelled();
+
+            // trim the line
+            int s = _ls;
+            int e = _le;
+            while (s < e && _in[s] <= ' ') ++s;
+            while (e > s && _in[e-1] <= ' ') --e;
+
+            if (s < e && _in[s] == '#') break;
+            if (e - s >= 2 && _in[s] == '/' && _in[s+1] == '/')
+                continue; // skip line comments
+
+            boolean ok;
+            try
+            {
+                ok = s == e || handleLine(_in, s, e); // skip blank lines
+            }
+            catch (CancellationException ex)
+            {
+                throw ex;
+            }
+            catch (Exception ex)
             {
-                line = line.trim(); 
-                if (line.startsWith("#")) break;
-                if (line.startsWith("//")) continue; // skip line comments
+                ok = false;
+            }
+            if (!ok)
+                results.append("malformed input: \"").append(_in, s, e - s).append("\"\n");
+            flush(out);
+        }
+        flush(out);
+    }
+
+    private static void checkCancelled()
+    {
+        // give up if this thread has been interrupted, or the pool task
+        // it is running cancelled, as when the request being served has
+        // run out of time or its client has gone away.
+        if (Thread.currentThread().isInterrupted() || Cancellation.cancelled())
+            throw new CancellationException();
+    }
+
+    private static String result(Future<String> f) throws IOException
+    {
+        // wait for a batch to finish and return its results.
+        try
+        {
+            return f.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof CancellationException)
+                throw (CancellationException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Callable<String> task(final String batch, final Cancellation cancel)
+    {
+        // solve `batch' with a Change of its own, under `cancel'.
+        return new Callable<String>()
+        {
+            public String call()
+            {
+                Cancellation.Entry e = Cancellation.enter(cancel);
                 try
                 {
-                    if (line.length() > 0) // skip blank lines
-                        handleLine(line);
+                    return new Change().calculate(batch);
                 }
-                catch (Exception e)
+                finally
                 {
-                    results.append("malformed input: \"").append(line).append("\"\n");
+                    e.exit();
                 }
             }
+        };
+    }
+
+    public void calculateParallel(Reader arg, Writer out) throws IOException
+    {
+        // parallel version of calculate. The input is cut into batches of
+        // about BATCH_LINES lines, each solved by a separate
+        // Change in the common pool so that no solver state is shared.
+        // Results are written in input order and match calculate exactly.
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+        int window = 2*pool.getParallelism();
+        Cancellation cancel = Cancellation.child();
+
+        try
+        {
+            BufferedReader in = new BufferedReader(arg);
+            StringBuilder batch = new StringBuilder();
+            int n = 0;
+            String line;
+            while ((line = readLine(in)) != null)
+            {
+                checkCancelled();
+                String t = line.trim();
+                if (t.startsWith("#")) break;
+                batch.append(line).append('\n');
+                if (++n >= BATCH_LINES)
+                {
+                    // keep a bounded number of batches in flight
+                    if (pending.size() >= window) out.write(result(pending.remove()));
+                    pending.add(pool.submit(task(batch.toString(), cancel)));
+                    batch.setLength(0);
+                    n = 0;
+                }
+            }
+            if (n > 0) pending.add(pool.submit(task(batch.toString(), cancel)));
+
+            while (!pending.isEmpty()) out.write(result(pending.remove()));
         }
-        catch (IOException e)
+        finally
         {
-            results.append("error reading input\n");
+            // if we were interrupted or the output failed, abandon the
+            // batches not yet written, stopping those already running.
+            if (!pending.isEmpty()) cancel.cancel();
+            for (Future<String> f : pending) f.cancel(false);
         }
-
-        // return results to web page.
-        return results.toString();
+        flush(out);
     }
 }
@@ -0,0 +1,288 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Question 2, change, as a Solver.
+ */
+public class ChangeSolver implements Solver
+{
+    private final Change _ch = new Change();
+
+    // JSON object records, made into lines
+    private final Record _record = new Record();
+
+    public String name()
+    {
+        return "change";
+    }
+
+    public String title()
+    {
+        return "Question 2";
+    }
+
+    public void init(Map<String, String> params)
+    {
+        // lines solved before are answered from a cache of
+        // `changeResultCacheBytes'
+        Change.initResults(params);
+    }
+
+    public Solver create()
+    {
+        return new ChangeSolver();
+    }
+
+    public String endMark()
+    {
+        return "#";
+    }
+
+    public String recordMark()
+    {
+        return null;
+    }
+
+    public void setTrace(StringBuilder trace)
+    {
+        _ch.setTrace(trace);
+    }
+
+    public void calculate(Reader in, Writer out) throws IOException
+    {
+        _ch.calculate(in, out);
+    }
+
+    public void calculateParallel(Reader in, Writer out) throws IOException
+    {
+        _ch.calculateParallel(in, out);
+    }
+
+    public void solve(JsonReader in, int t, JsonWriter out) throws IOException
+    {
+        // a record is a line as for /question, eg "100,50,20:70", or an
+        // object {"coins":[100,50,20],"value":70}, optionally with the
+        // "stock" of each coin. The result is the change as an array of
+        // [coin,count] pairs, highest coin first.
+        char[] line;
+        int len;
+        if (t == JsonReader.STRING)
+        {
+            line = in.text();
+            len = in.length();
+        }
+        else if (t == JsonReader.BEGIN_OBJECT)
+        {
+            if (!_record.read(in))
+            {
+                out.error("expected {\"coins\":[...],\"value\":n}");
+                return;
+            }
+            line = _record._line;
+            len = _record._len;
+        }
+        else
+        {
+            in.skip(t);
+            out.error("expected a line or an object");
+            return;
+        }
+
+        int status;
+        try
+        {
+            status = _ch.solve(line, 0, len);
+        }
+        catch (CancellationException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            status = Change.MALFORMED;
+        }
+
+        switch (status)
+        {
+        case Change.SOLVED:
+            out.beginArray();
+            for (int i = 0; i < _ch.coins(); ++i)
+            {
+                if (_ch.count(i) > 0)
+                {
+                    out.beginArray();
+                    out.value(_ch.coin(i));
+                    out.value(_ch.count(i));
+                    out.endArray();
+                }
+            }
+            out.endArray();
+            break;
+        case Change.NO_SOLUTION:
+            out.error("no solution");
+            break;
+        case Change.TOO_LARGE:
+            out.error("too large to solve with limited stock");
+            break;
+        default:
+            out.error("malformed input");
+        }
+    }
+
+    private static final class Record
+    {
+        // a record given as an object, made into a line for Change. The
+        // arrays are kept for the next record.
+        private int[]   _coins = new int[16];
+        private int[]   _stock = new int[16];
+        private int     _ncoins;
+        private int     _nstock;
+        private int     _value;
+        private char[]  _line = new char[128];
+        private int     _len;
+
+        // count of the last array read by ints, or -1
+        private int     _n;
+
+        private boolean read(JsonReader in) throws IOException
+        {
+            // read the rest of an object {"coins":[...],"value":v}, with
+            // an optional "stock":[...], and make it the line
+            // `coin*stock,...:value'. Other names are ignored. Return
+            // false if the object is not of this form.
+            boolean ok = true;
+            boolean value = false;
+            _ncoins = -1;
+            _nstock = 0;
+            int t;
+            while ((t = in.next()) != JsonReader.END_OBJECT)
+            {
+                boolean coins = in.textIs("coins");
+                boolean stock = in.textIs("stock");
+                boolean val = in.textIs("value");
+                t = in.next();
+                if ((coins || stock) && t == JsonReader.BEGIN_ARRAY)
+                {
+                    if (coins)
+                    {
+                        _coins = ints(in, _coins);
+                        _ncoins = _n;
+                    }
+                    else
+                    {
+                        _stock = ints(in, _stock);
+                        _nstock = _n;
+                    }
+                    ok &= _n >= 0;
+                }
+                else if (val && t == JsonReader.NUMBER)
+                {
+                    try
+                    {
+                        _value = in.intValue();
+                        value = true;
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        ok = false;
+                    }
+                }
+                else
+                {
+                    in.skip(t);
+                    ok &= !(coins || stock || val);
+                }
+            }
+            if (!ok || !value || _ncoins < 0 || (_nstock > 0 && _nstock != _ncoins))
+                return false;
+
+            _len = 0;
+            for (int i = 0; i < _ncoins; ++i)
+            {
+                if (i > 0) add(',');
+                add(_coins[i]);
+                if (_nstock > 0)
+                {
+                    add('*');
+                    add(_stock[i]);
+                }
+            }
+            add(':');
+            add(_value);
+            return true;
+        }
+
+        private int[] ints(JsonReader in, int[] a) throws IOException
+        {
+            // read the rest of an array of ints into `a', growing it as
+            // needed, and set `_n' to their number, or -1 if any is not
+            // an int.
+            _n = 0;
+            int t;
+            while ((t = in.next()) != JsonReader.END_ARRAY)
+            {
+                if (t != JsonReader.NUMBER || _n < 0)
+                {
+                    in.skip(t);
+                    _n = -1;
+                    continue;
+                }
+                try
+                {
+                    int v = in.intValue();
+                    if (_n == a.length) a = Arrays.copyOf(a, 2*_n);
+                    a[_n++] = v;
+                }
+                catch (NumberFormatException e)
+                {
+                    _n = -1;
+                }
+            }
+            return a;
+        }
+
+        private void add(char c)
+        {
+            if (_len == _line.length) _line = Arrays.copyOf(_line, 2*_len);
+            _line[_len++] = c;
+        }
+
+        private void add(int v)
+        {
+            String s = Integer.toString(v);
+            int n = s.length();
+            if (_len + n > _line.length)
+                _line = Arrays.copyOf(_line, Math.max(2*_line.length, _len + n));
+            s.getChars(0, n, _line, _len);
+            _len += n;
+        }
+    }
+}
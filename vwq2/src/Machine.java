@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ * 
+ * contact@voidware.com
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A ticket machine's coin inventory.
+ *
+ * Each machine holds a stock of coins which grows as customers insert
+ * coins and shrinks as change is dispensed. Change is the fewest coins
+ * that the stock can make, higher denominations taking precedence, as
+ * for limited stock lines in Change.
+ *
+ * Machines are kept by name in a registry split into stripes, each with
+ * its own lock, so that many machines can be created and looked up at
+ * once. Each machine is locked on its own while in use.
+ *
+ * A machine's tables grow with the change asked of it. All machines
+ * share a budget of MAX_BYTES for them, and requests that would go over
+ * it are refused with IllegalStateException.
+ */
+
+public class Machine
+{
+    // registry stripes, a power of two
+    private static final int STRIPES = 64;
+
+    // most machines, the largest change value allowed, and the bytes
+    // all machines' tables may take
+    private static final int MAX_MACHINES = 1 << 16;
+    static final int MAX_VALUE = 1 << 16;
+    static final long MAX_BYTES = 64L << 20;
+
+    // values a new machine has tables for, so that creates are refused
+    // once the budget is spent
+    private static final int INITIAL_VALUES = 256;
+
+    private static final Stripe[] _stripes = new Stripe[STRIPES];
+    private static final AtomicInteger _count = new AtomicInteger();
+    private static final AtomicLong _free = new AtomicLong(MAX_BYTES);
+
+    static
+    {
+        for (int i = 0; i < STRIPES; ++i) _stripes[i] = new Stripe();
+    }
+
+    private static final class Stripe
+    {
+        final Map<String, Machine> _machines = new HashMap<>();
+    }
+
+    private final Change.Stock  _stock;
+    private final int[]         _sol;
+
+    // set once removed, when the tables' bytes have been returned
+    private boolean             _released;
+
+    private Machine(int[] coins, int[] stock, int max)
+    {
+        _stock = new Change.Stock(coins, stock, max, _free);
+        _stock.grow(Math.min(max + 1, INITIAL_VALUES));
+        _sol = new int[coins.length];
+    }
+
+    private static Stripe stripe(String id)
+    {
+        int h = id.hashCode();
+        return _stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    public static Machine get(String id)
+    {
+        Stripe s = stripe(id);
+        synchronized (s)
+        {
+            return s._machines.get(id);
+        }
+    }
+
+    public static Machine create(String id, String coins, int max)
+    {
+        // add a machine `id' with the stock `coins', given as
+        // `coin*count,...', eg 100*5,50*10,20*0, for change up to `max'.
+        // Unlike Change, every coin needs its count. Any existing machine
+        // of that name is replaced.
+        if (max < 0 || max > MAX_VALUE)
+            throw new IllegalArgumentException("value out of range: " + max);
+
+        int[][] cs = parseStock(coins);
+        Machine m = new Machine(cs[0], cs[1], max);
+
+        Machine old;
+        Stripe s = stripe(id);
+        synchronized (s)
+        {
+            if (!s._machines.containsKey(id) && _count.incrementAndGet() > MAX_MACHINES)
+            {
+                _count.decrementAndGet();
+                m.release();
+                throw new IllegalStateException("too many machines");
+            }
+            old = s._machines.put(id, m);
+        }
+        if (old != null) old.release();
+        return m;
+    }
+
+    public static boolean remove(String id)
+    {
+        Machine m;
+        Stripe s = stripe(id);
+        synchronized (s)
+        {
+            m = s._machines.remove(id);
+            if (m == null) return false;
+        }
+        _count.decrementAndGet();
+        m.release();
+        return true;
+    }
+
+    private synchronized void release()
+    {
+        // return the tables' bytes to the budget
+        _stock.release();
+        _released = true;
+    }
+
+    static int[][] parseStock(String coins)
+    {
+        // parse `coin*count,...' into distinct coins descending and their
+        // counts. A coin without a count is rejected: a machine has no
+        // unlimited coins.
+        Map<Integer, Long> stock = new HashMap<>();
+        for (String t : coins.split(","))
+        {
+            t = t.trim();
+            if (t.isEmpty()) continue;
+            int star = t.indexOf('*');
+            if (star < 0)
+                throw new IllegalArgumentException("count required: " + t);
+            int coin = Integer.parseInt(t.substring(0, star).trim());
+            int n = Integer.parseInt(t.substring(star + 1).trim());
+            if (coin <= 0 || n < 0)
+                throw new IllegalArgumentException("bad coin: " + t);
+            Long c = stock.get(coin);
+            stock.put(coin, (c == null ? 0 : c) + n);
+        }
+
+        int[] cs = new int[stock.size()];
+        int i = 0;
+        for (int c : stock.keySet()) cs[i++] = c;
+        Arrays.sort(cs);
+
+        int m = cs.length;
+        int[][] r = new int[2][m];
+        for (i = 0; i < m; ++i)
+        {
+            r[0][i] = cs[m-1-i];
+            r[1][i] = (int)Math.min(stock.get(r[0][i]), Integer.MAX_VALUE);
+        }
+        return r;
+    }
+
+    private int index(int coin)
+    {
+        // position of `coin' in the stock
+        int[] cs = _stock._coins;
+        for (int i = 0; i < cs.length; ++i)
+            if (cs[i] == coin) return i;
+        throw new IllegalArgumentException("unknown coin: " + coin);
+    }
+
+    public synchronized void insert(String coins)
+    {
+        // add `coins', as for create, to the stock. The machine only
+        // takes the coins it was created with.
+        int[][] cs = parseStock(coins);
+        for (int i = 0; i < cs[0].length; ++i) index(cs[0][i]);
+        for (int i = 0; i < cs[0].length; ++i)
+            _stock.add(index(cs[0][i]), cs[1][i]);
+    }
+
+    public synchronized String dispense(int value)
+    {
+        // give change for `value' from the stock, returning it as for
+        // Change, eg 50x1,5x1,2x1. Return null, leaving the stock alone,
+        // if the stock cannot make it.
+        if (_released) throw new IllegalStateException("machine removed");
+        if (!_stock.solve(value, _sol)) return null;
+
+        StringBuilder sb = new StringBuilder();
+        int[] cs = _stock._coins;
+        for (int i = 0; i < cs.length; ++i)
+        {
+            if (_sol[i] == 0) continue;
+            _stock.add(i, -_sol[i]);
+            if (sb.length() > 0) sb.append(',');
+            sb.append(cs[i]).append('x').append(_sol[i]);
+        }
+        return sb.toString();
+    }
+
+    public synchronized String inventory()
+    {
+        // the stock, as for create
+        StringBuilder sb = new StringBuilder();
+        int[] cs = _stock._coins;
+        for (int i = 0; i < cs.length; ++i)
+        {
+            if (i > 0) sb.append(',');
+            sb.append(cs[i]).append('*').append(_stock._stock[i]);
+        }
+        return sb.toString();
+    }
+}
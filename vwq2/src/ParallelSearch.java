@@ -0,0 +1,593 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * The rest of a hard Change search, on many cores.
+ *
+ * Change.changeMaker pauses a search that runs long, and this carries it
+ * on from the frames it paused with. Tasks split off skip branches for
+ * idle workers of the common pool to steal, next in the order the
+ * single search would come to them, and search them as changeMaker
+ * does, taking each coin before skipping it.
+ *
+ * Each task owns an interval of positions in the single search's order.
+ * When it splits off a branch it gives it a small share of what remains
+ * to it, after as small a share kept for the search up to that branch,
+ * and keeps the rest for what follows. Everything the paused search did
+ * comes before them all, at position zero.
+ *
+ * The bound is a key of the coin count above the position of the
+ * solution it came from. A solution is only beaten by one with fewer
+ * coins, or as few found earlier in search order, so equal solutions go
+ * to the higher denominations as in the single search, whichever thread
+ * finds them.
+ *
+ * Values the paused search marked in Change's own cutoff cut every task.
+ * The tasks' own cutoff keeps, for a value and the coin its frame starts
+ * from, the fewest coins it was found to need: as many as it would take
+ * to reach the bound from the coins taken when it could not beat it.
+ * That holds wherever it was found, and the frame is cut wherever that
+ * many more cannot beat the bound. So no solution is cut that could
+ * beat the bound, what each task happens to see of the others' marks
+ * makes no difference to the solution, and it is the same from run to
+ * run and however many cores there are.
+ */
+final class ParallelSearch
+{
+    // frames, as for changeMaker, with a frame whose skip branch was
+    // split off FORKED and one with split off work beneath it PARTIAL.
+    private static final int FRAME = 4;
+    private static final int TAKING = 0;
+    private static final int SKIPPING = 1;
+    private static final int SOLVED_TAKING = 2;
+    private static final int FORKED = 4;
+    private static final int PARTIAL = 8;
+
+    // every SPLIT_NODES nodes, while the pool has few queued tasks, a
+    // task splits off a skip branch for a value of at least SPLIT_VALUE,
+    // while it has fewer than MAX_SPLITS on its stack. The branch gets
+    // one part in 1 << SPLIT_SHARE of the positions.
+    private static final int SPLIT_NODES = 1 << 10;
+    private static final int SPLIT_SHARE = 8;
+    private static final int SPLIT_VALUE = 1 << 12;
+    private static final int SPLIT_SURPLUS = 2;
+    private static final int MAX_SPLITS = 24;
+    private static final int NO_SPLIT = Integer.MIN_VALUE;
+
+    // the tasks' cutoff holds at most CUTOFF_ENTRIES values, after which
+    // new ones are not kept
+    private static final int CUTOFF_ENTRIES = 1 << 18;
+
+    private final Change        _change;
+    private final int[]         _coins;
+
+    // the bound, with the position in its low `_shift' bits. Counts
+    // are compared only up to `_max', the limit the search began with,
+    // which is as high as the bound's count can be.
+    private final AtomicLong    _bound;
+    private final int           _shift;
+    private final int           _max;
+
+    // the tasks' cutoff. `_keys' holds a value and the coin its frame
+    // starts from, plus one, zero for an empty slot, and `_marks' the
+    // fewest coins it was found to need, zero until it is set.
+    private final AtomicLongArray    _keys;
+    private final AtomicIntegerArray _marks;
+    private final AtomicInteger      _entries = new AtomicInteger();
+
+    // best solution the tasks found, the one whose key is `_bound'
+    private int[]               _solution;
+
+    private final AtomicLong    _nodes = new AtomicLong();
+    private final AtomicLong    _hits = new AtomicLong();
+    private final Cancellation  _cancel = Cancellation.child();
+
+    ParallelSearch(Change change, int[] coins, int limit)
+    {
+        // the rest of `change's search with `coins', paused having found
+        // no better than `limit' coins.
+        _change = change;
+        _coins = coins;
+        _max = limit;
+        _shift = Long.numberOfLeadingZeros(limit) - 1;
+        _bound = new AtomicLong((long)limit << _shift);
+        _keys = new AtomicLongArray(2*CUTOFF_ENTRIES);
+        _marks = new AtomicIntegerArray(2*CUTOFF_ENTRIES);
+    }
+
+    static boolean available()
+    {
+        // worth searching in parallel from this thread. Not from inside
+        // the pool, where lines are already being solved in parallel.
+        return ForkJoinPool.getCommonPoolParallelism() > 1
+            && !ForkJoinTask.inForkJoinPool();
+    }
+
+    boolean solve(int[] frames, int top, int i, int val, int[] s, int c,
+                  boolean take, int[] solution)
+    {
+        // carry on from the paused search's `frames' up to entry `top',
+        // about to enter the frame for `val' from coin `i' having taken
+        // the `c' coins in `s', and taking if `take'. Put a better
+        // solution, if there is one, in `solution' and return true.
+        int m = _coins.length;
+        Task root = new Task(frames, top, i, val, s.clone(), c, take, 1, 1L << _shift);
+        ForkJoinTask<Void> f = ForkJoinPool.commonPool().submit(root);
+        try
+        {
+            f.get();
+        }
+        catch (InterruptedException e)
+        {
+            // leave the interrupt for the caller
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) throw (RuntimeException)t;
+            if (t instanceof Error) throw (Error)t;
+            throw new IllegalStateException(t);
+        }
+        finally
+        {
+            // stop any tasks still running
+            if (!f.isDone()) _cancel.cancel();
+        }
+
+        synchronized (this)
+        {
+            if (_solution == null) return false;
+            System.arraycopy(_solution, 0, solution, 0, m);
+            return true;
+        }
+    }
+
+    int limit()
+    {
+        return (int)(_bound.get() >>> _shift);
+    }
+
+    long nodes()
+    {
+        return _nodes.get();
+    }
+
+    long hits()
+    {
+        return _hits.get();
+    }
+
+    long cutoffBytes()
+    {
+        return 8L*_keys.length() + 4L*_marks.length();
+    }
+
+    private static int hash(long v)
+    {
+        long h = v * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private boolean infeasible(int val, int i, int c, long pos)
+    {
+        // true if `val' from coin `i', with `c' coins taken at position
+        // `pos', cannot beat the bound
+        if (_change.infeasible(val)) return true;
+        long key = (long)val*_coins.length + i + 1;
+        int mask = _keys.length() - 1;
+        long k;
+        for (int h = hash(key) & mask; (k = _keys.get(h)) != 0; h = (h + 1) & mask)
+        {
+            if (k == key)
+            {
+                int n = c + _marks.get(h);
+                return n > _max || ((long)n << _shift | pos) >= _bound.get();
+            }
+        }
+        return false;
+    }
+
+    private void setInfeasible(int val, int i, int c)
+    {
+        // `val' from coin `i', with `c' coins taken, could not beat the
+        // bound, so needs at least as many more as take the count to
+        // it. The bound only comes down, so what is kept is the most
+        // found.
+        int need = (int)(_bound.get() >>> _shift) - c;
+        if (need <= 0) return;
+        long key = (long)val*_coins.length + i + 1;
+        int mask = _keys.length() - 1;
+        int h = hash(key) & mask;
+        for (;;)
+        {
+            long k = _keys.get(h);
+            if (k == 0)
+            {
+                if (_entries.get() >= CUTOFF_ENTRIES) return;
+                if (!_keys.compareAndSet(h, 0, key)) continue;
+                _entries.incrementAndGet();
+                k = key;
+            }
+            if (k == key)
+            {
+                int n;
+                while ((n = _marks.get(h)) < need && !_marks.compareAndSet(h, n, need))
+                    ;
+                return;
+            }
+            h = (h + 1) & mask;
+        }
+    }
+
+    private synchronized void offer(long key, int[] s, int i, int ni)
+    {
+        // a solution of `s' plus `ni' of coin `i', at `key'. Keep it if
+        // it beats the best so far.
+        if (key >= _bound.get()) return;
+        if (_solution == null) _solution = new int[s.length];
+        System.arraycopy(s, 0, _solution, 0, s.length);
+        _solution[i] += ni;
+        _bound.set(key);
+    }
+
+    private final class Task extends RecursiveAction
+    {
+        // search on from the frames `_frames' up to entry `_top', about
+        // to enter the frame for `_val' from coin `_i', having taken the
+        // `_c' coins in `_s', in positions [_lo, _hi) of the search
+        // order.
+        private final int[]     _frames;
+        private final int       _top;
+        private final int       _i;
+        private final int       _val;
+        private final int[]     _s;
+        private final int       _c;
+        private final boolean   _take;
+        private final long      _lo;
+        private final long      _hi;
+        private final ArrayList<Task> _split = new ArrayList<Task>();
+
+        Task(int[] frames, int top, int i, int val, int[] s, int c, boolean take,
+             long lo, long hi)
+        {
+            _frames = frames;
+            _top = top;
+            _i = i;
+            _val = val;
+            _s = s;
+            _c = c;
+            _take = take;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        @Override
+        protected void compute()
+        {
+            Cancellation.Entry e = Cancellation.enter(_cancel);
+            try
+            {
+                search();
+            }
+            finally
+            {
+                e.exit();
+            }
+        }
+
+        private void search()
+        {
+            // as changeMaker, see there. A run of frames taking the same
+            // coin is never extended past a FORKED entry, and parting one
+            // to split it adds two, so there are at most `m' entries plus
+            // two for each split. `resume' keeps, for each FORKED entry,
+            // the positions to go on with after it.
+            int[] coins = _coins;
+            int m = coins.length;
+            int[] s = _s;
+            int[] f = new int[FRAME*(m + 2*MAX_SPLITS)];
+            long[] resume = new long[2*(m + 2*MAX_SPLITS)];
+            long[] span = new long[2];
+            int forks = 0;
+
+            int top = _top;
+            if (_frames != null) System.arraycopy(_frames, 0, f, 0, top + FRAME);
+            int i = _i;
+            int val = _val;
+            int c = _c;
+            boolean take = _take;
+            long lo = _lo;
+            long hi = _hi;
+            long count = 0;
+            long hits = 0;
+
+            for (;;)
+            {
+                // enter the frame for `val' from coin `i'. It either ends
+                // at once, with result `r', or is pushed and goes on to a
+                // branch. `partial' if any of what it returns was split
+                // off.
+                boolean r = false;
+                boolean partial = false;
+
+                if ((++count & (SPLIT_NODES - 1)) == 0)
+                {
+                    if ((count & 0xFFFF) == 0 && Cancellation.cancelled())
+                        throw new CancellationException();
+                    if (forks < MAX_SPLITS && getSurplusQueuedTaskCount() < SPLIT_SURPLUS)
+                    {
+                        span[0] = lo;
+                        span[1] = hi;
+                        int t = split(f, top, resume, s, c, span);
+                        if (t != NO_SPLIT)
+                        {
+                            top = t;
+                            hi = span[1];
+                            ++forks;
+                        }
+                    }
+                }
+
+                while (i < m && coins[i] > val) ++i;
+                if (i < m)
+                {
+                    boolean more = i < m-1;
+                    int ci = coins[i];
+                    int ni = val/ci;
+                    int lb = ni;
+
+                    if (more)
+                    {
+                        int v = val - lb*ci;
+                        int q = v/coins[i+1];
+                        int rem = v - q*coins[i+1];
+                        if (rem > 0) ++q;
+                        lb += q;
+                        ni = 1;
+                    }
+
+                    if (lb + c <= _max && ((long)(lb + c) << _shift | lo) < _bound.get())
+                    {
+                        if (val == ni*ci)
+                        {
+                            offer((long)(c + ni) << _shift | lo, s, i, ni);
+                            r = true;
+                        }
+                        else if (more)
+                        {
+                            if (take && f[top+3] == TAKING && f[top] == i)
+                            {
+                                f[top+1] = val;
+                                ++f[top+2];
+                            }
+                            else
+                            {
+                                top += FRAME;
+                                f[top] = i;
+                                f[top+1] = val;
+                                f[top+2] = 1;
+                            }
+
+                            // the frame taking the coin would start from the
+                            // first coin it could take
+                            int j = i;
+                            while (j < m && coins[j] > val - ci) ++j;
+                            if (!infeasible(val - ci, j, c + 1, lo))
+                            {
+                                f[top+3] = TAKING;
+                                ++s[i];
+                                ++c;
+                                val -= ci;
+                                take = true;
+                            }
+                            else
+                            {
+                                ++hits;
+                                f[top+3] = SKIPPING;
+                                ++i;
+                                take = false;
+                            }
+                            continue;
+                        }
+                    }
+                }
+                if (!r) setInfeasible(val, i, c);
+
+                // return down the stack to the first frame with a branch
+                // still to try. Values are only marked infeasible when
+                // none of the search beneath them was split off.
+                for (;;)
+                {
+                    if (top < 0)
+                    {
+                        _nodes.addAndGet(count);
+                        _hits.addAndGet(hits);
+                        for (int k = _split.size() - 1; k >= 0; --k) _split.get(k).join();
+                        return;
+                    }
+
+                    i = f[top];
+                    val = f[top+1];
+                    int state = f[top+3];
+                    if (state == FORKED)
+                    {
+                        // leaving the coin was split off for all the
+                        // entry's frames. carry on after their positions.
+                        s[i] -= f[top+2];
+                        c -= f[top+2];
+                        --forks;
+                        lo = resume[2*(top/FRAME)];
+                        hi = resume[2*(top/FRAME)+1];
+                        partial = true;
+                        top -= FRAME;
+                        continue;
+                    }
+                    if (state == TAKING)
+                    {
+                        --s[i];
+                        --c;
+                        f[top+3] = SKIPPING | (r ? SOLVED_TAKING : 0) | (partial ? PARTIAL : 0);
+                        ++i;
+                        take = false;
+                        break;
+                    }
+                    if ((state & SOLVED_TAKING) != 0) r = true;
+                    if ((state & PARTIAL) != 0) partial = true;
+                    if (!r && !partial) setInfeasible(val, i, c);
+
+                    if (f[top+2] > 1)
+                    {
+                        f[top+1] = val + coins[i];
+                        --f[top+2];
+                        f[top+3] = TAKING;
+                    }
+                    else top -= FRAME;
+                }
+            }
+        }
+
+        private int split(int[] f, int top, long[] resume, int[] s, int c, long[] span)
+        {
+            // give the next skip branch of the oldest run that can still
+            // beat the bound to a new task, with a share of the positions
+            // the search will have on coming back to it. Its frame becomes
+            // a FORKED entry of its own. Branches are given away in the
+            // order the search comes to them, so the tasks stay near where
+            // it has got to, as the bound is mostly only tightened there.
+            // `span' holds the task's positions, the first part of which
+            // is kept for what comes before. Return the new top entry, or
+            // NO_SPLIT if nothing was split off.
+            int[] coins = _coins;
+            int limit = (int)(_bound.get() >>> _shift);
+            for (int e = 0; e <= top; e += FRAME)
+            {
+                int state = f[e+3];
+                int n = f[e+2];
+                int last = state == TAKING ? n : n - 1;
+                if (state == FORKED || last == 0) continue;
+                int i = f[e];
+                int ci = coins[i];
+                int v = f[e+1];
+
+                // the coins taken before the run
+                int[] t = s.clone();
+                int tc = c;
+                for (int k = e; k <= top; k += FRAME)
+                {
+                    int taken = (f[k+3] & SKIPPING) != 0 ? f[k+2] - 1 : f[k+2];
+                    t[f[k]] -= taken;
+                    tc -= taken;
+                }
+
+                // the frame `last' from the bottom has taken `tc + last'
+                // coins and skips with `val' left. Those below it have
+                // taken fewer and need more, so if it cannot beat the
+                // bound none of them can.
+                int val = v + (n - last)*ci;
+                if (val < SPLIT_VALUE) return NO_SPLIT;
+                if (tc + last - 1 + bound(val, i+1) > limit) continue;
+
+                // the positions are those after the nearest FORKED entry
+                // above, if there is one
+                int x = e + FRAME;
+                while (x <= top && f[x+3] != FORKED) x += FRAME;
+                long a = x <= top ? resume[2*(x/FRAME)] : span[0];
+                long b = x <= top ? resume[2*(x/FRAME)+1] : span[1];
+                long w = (b - a) >> SPLIT_SHARE;
+                if (w == 0) continue;
+
+                // the new task starts at the skip of that frame, having
+                // taken the coins of those below. What it took is searched
+                // here, so its value cannot be marked.
+                t[i] += last - 1;
+                int[] g = { i, val, 1, SKIPPING | PARTIAL };
+                Task task = new Task(g, 0, i+1, val, t, tc + last - 1, false, a + w, a + 2*w);
+
+                // part the run into the frames below it, the FORKED frame
+                // and the one above if it is skipping
+                int below = last > 1 ? 1 : 0;
+                int above = last < n ? 1 : 0;
+                int grow = FRAME*(below + above);
+                System.arraycopy(f, e + FRAME, f, e + FRAME + grow, top - e);
+                System.arraycopy(resume, 2*(e/FRAME + 1), resume, 2*(e/FRAME + 1) + 2*(below + above),
+                                 2*((top - e)/FRAME));
+                top += grow;
+                x += grow;
+                int k = e;
+                if (below != 0)
+                {
+                    f[k+1] = val + ci;
+                    f[k+2] = last - 1;
+                    f[k+3] = TAKING;
+                    k += FRAME;
+                    f[k] = i;
+                }
+                f[k+1] = val;
+                f[k+2] = 1;
+                f[k+3] = FORKED;
+                resume[2*(k/FRAME)] = a + 2*w;
+                resume[2*(k/FRAME)+1] = b;
+                if (above != 0)
+                {
+                    k += FRAME;
+                    f[k] = i;
+                    f[k+1] = v;
+                    f[k+2] = 1;
+                    f[k+3] = state;
+                }
+                if (x <= top) resume[2*(x/FRAME)+1] = a + w;
+                else span[1] = a + w;
+
+                task.fork();
+                _split.add(task);
+                return top;
+            }
+            return NO_SPLIT;
+        }
+
+        private int bound(int val, int i)
+        {
+            // the fewest coins from `i' on that could make `val', as
+            // changeMaker bounds it
+            int m = _coins.length;
+            int n = val/_coins[i];
+            if (i == m-1) return val == n*_coins[i] ? n : Integer.MAX_VALUE/2;
+            int v = val - n*_coins[i];
+            return n + (v + _coins[i+1] - 1)/_coins[i+1];
+        }
+    }
+}
@@ -1,20 +0,0 @@
-<%@ page contentType="text/html;charset=UTF-8" language="java" %>
-<html>
-<head>
-    <link rel="stylesheet" type="text/css" href="style.css">
-    <title>Bluemix Question 2</title>
-</head>
-
-<body>
-
-<h1>Question 2 Input Data</h1>
-
-<form action="question" method="post">
-    <label>
-        <textarea name="inputdata" cols="80" rows="20"></textarea><br/>
-    </label>
-    <input type="submit" value="Run"/>
-
-</form>
-</body>
-</html>
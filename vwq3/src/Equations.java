@@ -23,14 +23,84 @@
  */
 
 import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 public class Equations
 {
-    private final StringBuffer results = new StringBuffer();
-    private String    _line;
+    private final StringBuilder results = new StringBuilder();
+
+    // lines and characters of input per task in parallel mode. A batch
+    // that reaches BATCH_LIMIT times either without a `#' holds a set too
+    // big to cut, and the rest of the input is solved in sequence.
+    private static final int BATCH_LINES = 1024;
+    private static final int BATCH_CHARS = 1 << 16;
+    private static final int BATCH_LIMIT = 4;
+
+    // elimination steps touching more entries than this use several threads
+    private static final int PARALLEL_ENTRIES = 1 << 12;
+
+    // sets of at least SPARSE_MIN equations with fewer than 1/SPARSE_RATIO
+    // of their coefficients non-zero are solved as sparse
+    private static final int SPARSE_MIN = 32;
+    private static final int SPARSE_RATIO = 8;
+
+    // the line being parsed is _in[_start.._end)
+    private int       _start;
+    private int       _end;
     private int       _pos;
     private int       _value;
 
+    // input buffer. The current line is _in[_ls.._le) and unread input
+    // runs from `_ip' to `_ie'.
+    private char[]    _in = new char[8192];
+    private int       _ip, _ie, _ls, _le;
+    private boolean   _eof;
+    private boolean   _skipLF;
+
+    // output staging for flush
+    private char[]    _out = new char[1024];
+
+    // the equations of the current set, and the names of their variables
+    // in order of first appearance. Equations of earlier sets are kept
+    // in `_spare' for reuse.
+    private final List<Equation>        _eqs = new ArrayList<Equation>();
+    private final List<Equation>        _spare = new ArrayList<Equation>();
+    private final List<String>          _names = new ArrayList<String>();
+
+    // every variable name met so far, found through an open hash table
+    // of their ids plus one. A name's index in the current set is
+    // `_varOf' when its `_stamp' is the current `_set'.
+    private String[]  _symbols = new String[16];
+    private int       _nsymbols;
+    private int[]     _slots = new int[32];
+    private int[]     _varOf = new int[16];
+    private int[]     _stamp = new int[16];
+    private int       _set = 1;
+
+    // the solution of the last set solved. Variable _order[i] is
+    // _num[i]/_den[i], or `_num' is null if there is no unique solution.
+    private int[]     _order;
+    private BigInteger[] _num;
+    private BigInteger[] _den;
+
+    // key of the lines of the current set in `_results'
+    private final ResultCache.Key _key = new ResultCache.Key().clear();
+
+    // solutions of sets solved before, by their text
+    private static final ResultCache<Solution> _results = new ResultCache<Solution>("equations");
+
     class MalformedInputException extends Exception
     {
         public MalformedInputException(String m) { super(m); }
@@ -39,30 +109,60 @@ public class Equations
     // class to hold coefficients for an equation
     class Equation
     {
-        public String toString()
+        public String toString(int[] order)
         {
+            // show with every variable of the set, taken in `order'.
             StringBuilder sb = new StringBuilder();
-            sb.append(_cx);
-            sb.append('x');
-            if (_cy >= 0) sb.append('+');
-            sb.append(_cy);
-            sb.append('y');
+            for (int i = 0; i < order.length; ++i)
+            {
+                long c = coefficient(order[i]);
+                if (i > 0 && c >= 0) sb.append('+');
+                sb.append(c);
+                sb.append(_names.get(order[i]));
+            }
             sb.append('=');
             sb.append(_val);
             return sb.toString();
         }
 
-        // cx*X + cy*Y = val
-        int _cx;
-        int _cy;
-        int _val;
+        void add(int var, long c)
+        {
+            // collect coefficient `c' of variable `var'
+            for (int k = 0; k < _terms; ++k)
+            {
+                if (_var[k] == var)
+                {
+                    _coef[k] += c;
+                    return;
+                }
+            }
+            if (_terms == _var.length)
+            {
+                _var = Arrays.copyOf(_var, 2*_terms);
+                _coef = Arrays.copyOf(_coef, 2*_terms);
+            }
+            _var[_terms] = var;
+            _coef[_terms++] = c;
+        }
+
+        long coefficient(int var)
+        {
+            for (int k = 0; k < _terms; ++k)
+                if (_var[k] == var) return _coef[k];
+            return 0;
+        }
+
+        // sum of _coef[k]*variable _var[k] over the terms = val
+        int[]   _var = new int[2];
+        long[]  _coef = new long[2];
+        int     _terms;
+        long    _val;
     }
 
     private char currentChar()
     {
         char c = 0;
-        if (_pos < _line.length())
-            c = Character.toUpperCase(_line.charAt(_pos));
+        if (_pos < _end) c = _in[_pos];
         return c;
     }
 
@@ -77,9 +177,14 @@ public class Equations
         while (Character.isWhitespace(currentChar())) ++_pos;
     }
 
+    private String line()
+    {
+        // the line being parsed, for error messages
+        return new String(_in, _start, _end - _start);
+    }
+
     private boolean parseNumber()
     {
-        StringBuilder sb = new StringBuilder();
         boolean neg;
 
         skipSpace();
@@ -88,27 +193,134 @@ public class Equations
         // handle leading minus sign or plus
         if ((neg = (c == '-')) || c == '+') c = nextChar();
         
-        // collect digits
+        // collect digits. Numbers too big for an int are malformed, as
+        // from Integer.parseInt.
+        int start = _pos;
+        long v = 0;
         while (Character.isDigit(c))
         {
-            sb.append(c);
+            v = v*10 + Character.digit(c, 10);
+            if (v > Integer.MAX_VALUE)
+                throw new NumberFormatException("number too big: " + line());
             c = nextChar();
         }
 
         // implied value
         _value = 1;
 
-        boolean valid = sb.length() > 0;
-        if (valid) _value = Integer.parseInt(sb.toString());
+        boolean valid = _pos > start;
+        if (valid) _value = (int)v;
         if (neg) _value = -_value;
         return valid;
     }
 
-    private Equation parseEquation(String s) throws MalformedInputException
+    private int parseVariable() throws MalformedInputException
+    {
+        // variables are a letter, optionally with a numeric subscript,
+        // eg x, y or x_12. return the variable's index in the set.
+        //
+        // the name is looked up from the line without making a string,
+        // letter and then subscript digits in _in[ds..de). Names are
+        // case-insensitive and kept in lower case, as they are printed.
+        char letter = Character.toLowerCase(_in[_pos]);
+        int ds = 0;
+        int de = 0;
+        if (nextChar() == '_')
+        {
+            char c = nextChar();
+            if (!Character.isDigit(c))
+                throw new MalformedInputException("unexpected term: " + line());
+
+            ds = _pos;
+            while (Character.isDigit(c)) c = nextChar();
+            de = _pos;
+
+            // drop leading zeros so that x_01 is x_1
+            while (ds < de - 1 && _in[ds] == '0') ++ds;
+        }
+
+        int id = symbol(letter, ds, de);
+        if (_stamp[id] != _set)
+        {
+            _stamp[id] = _set;
+            _varOf[id] = _names.size();
+            _names.add(_symbols[id]);
+        }
+        return _varOf[id];
+    }
+
+    private boolean isName(String name, char letter, int ds, int de)
+    {
+        // true if `name' is `letter' with subscript _in[ds..de), if any.
+        if (name.length() != (ds < de ? 2 + de - ds : 1)) return false;
+        if (name.charAt(0) != letter) return false;
+        for (int i = ds; i < de; ++i)
+            if (name.charAt(2 + i - ds) != _in[i]) return false;
+        return true;
+    }
+
+    private int symbol(char letter, int ds, int de)
+    {
+        // return the id of the name `letter' with subscript _in[ds..de),
+        // adding it if new. The hash is that of the name as a string.
+        int h = letter;
+        if (ds < de)
+        {
+            h = 31*h + '_';
+            for (int i = ds; i < de; ++i) h = 31*h + _in[i];
+        }
+
+        int mask = _slots.length - 1;
+        int i = (h ^ (h >>> 16)) & mask;
+        for (int s; (s = _slots[i]) != 0; i = (i + 1) & mask)
+            if (isName(_symbols[s-1], letter, ds, de)) return s - 1;
+
+        // new name
+        String name = String.valueOf(letter);
+        if (ds < de) name += "_" + new String(_in, ds, de - ds);
+
+        int id = _nsymbols++;
+        if (id == _symbols.length)
+        {
+            _symbols = Arrays.copyOf(_symbols, 2*id);
+            _varOf = Arrays.copyOf(_varOf, 2*id);
+            _stamp = Arrays.copyOf(_stamp, 2*id);
+        }
+        _symbols[id] = name;
+        _slots[i] = id + 1;
+
+        // keep the table at most half full
+        if (2*_nsymbols > _slots.length)
+        {
+            _slots = new int[2*_slots.length];
+            mask = _slots.length - 1;
+            for (int k = 0; k < _nsymbols; ++k)
+            {
+                h = _symbols[k].hashCode();
+                int j = (h ^ (h >>> 16)) & mask;
+                while (_slots[j] != 0) j = (j + 1) & mask;
+                _slots[j] = k + 1;
+            }
+        }
+        return id;
+    }
+
+    private void parseEquation() throws MalformedInputException
     {
-        _line = s;
-        _pos = 0;
-        Equation eq = new Equation();
+        // parse the line in _in[_start.._end) and add it to the set.
+        // Equations are taken from `_spare' when there are any, so that
+        // their coefficient storage is reused.
+        _key.add(_in, _start, _end);
+        _pos = _start;
+        Equation eq;
+        if (_spare.isEmpty()) eq = new Equation();
+        else
+        {
+            eq = _spare.remove(_spare.size() - 1);
+            eq._terms = 0;
+            eq._val = 0;
+        }
+        _eqs.add(eq);
 
         while (true)
         {
@@ -117,17 +329,10 @@ public class Equations
             skipSpace();
             char c = currentChar();
             
-            if (c == 'X')
+            if (Character.isLetter(c))
             {
-                // collect X coefficients
-                eq._cx += _value;
-                ++_pos;
-            }
-            else if (c == 'Y')
-            {
-                // collect Y coefficients
-                eq._cy += _value;
-                ++_pos;
+                // collect variable coefficients
+                eq.add(parseVariable(), _value);
             }
             else if (c == '=')
             {
@@ -141,22 +346,894 @@ public class Equations
                 if (valid && currentChar() != 0) valid = false;
                 
                 if (!valid)
-                    throw new MalformedInputException("malformed number " + _line);
+                    throw new MalformedInputException("malformed number " + line());
                 eq._val += _value;
                 break;
             }
             else
-                throw new MalformedInputException("unexpected term: " + _line);
+                throw new MalformedInputException("unexpected term: " + line());
+        }
+    }
+
+    private static int compareNames(String a, String b)
+    {
+        // order variables by letter, then by subscript as a number, so
+        // that x < x_2 < x_10 < y.
+        int c = Character.compare(a.charAt(0), b.charAt(0));
+        if (c == 0) c = Integer.compare(a.length(), b.length());
+        if (c == 0) c = a.compareTo(b);
+        return c;
+    }
+
+    private int[] order()
+    {
+        // return the variable indices of the current set sorted by name.
+        Integer[] v = new Integer[_names.size()];
+        for (int i = 0; i < v.length; ++i) v[i] = i;
+        Arrays.sort(v, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                return compareNames(_names.get(a), _names.get(b));
+            }
+        });
+
+        int[] order = new int[v.length];
+        for (int i = 0; i < v.length; ++i) order[i] = v[i];
+        return order;
+    }
+
+    private static long[] solveLong(long[][] a)
+    {
+        // Fraction-free Gaussian elimination (Bareiss, 1968).
+        //
+        // solve the n x (n+1) augmented system `a' in place. Each step
+        // divides exactly by the previous pivot, so entries stay integers
+        // no larger than minors of the original. return the numerators of
+        // the solution followed by their common denominator, or null if
+        // the system is singular.
+        // throws ArithmeticException on overflow.
+        int n = a.length;
+        long prev = 1;
+        for (int k = 0; k < n; ++k)
+        {
+            checkCancelled();
+
+            // find a non-zero pivot
+            int p = k;
+            while (p < n && a[p][k] == 0) ++p;
+            if (p == n) return null;
+            long[] t = a[p]; a[p] = a[k]; a[k] = t;
+
+            long[] ak = a[k];
+            long pk = ak[k];
+            for (int i = k + 1; i < n; ++i)
+            {
+                long[] ai = a[i];
+                long aik = ai[k];
+                for (int j = k + 1; j <= n; ++j)
+                    ai[j] = Math.subtractExact(Math.multiplyExact(pk, ai[j]),
+                                               Math.multiplyExact(aik, ak[j]))/prev;
+                ai[k] = 0;
+            }
+            prev = pk;
+        }
+
+        // back substitute. the last pivot is the determinant (up to sign)
+        // and, by Cramer's rule, a common denominator of the solution.
+        long det = prev;
+        long[] x = new long[n + 1];
+        for (int i = n - 1; i >= 0; --i)
+        {
+            long s = Math.multiplyExact(det, a[i][n]);
+            for (int j = i + 1; j < n; ++j)
+                s = Math.subtractExact(s, Math.multiplyExact(a[i][j], x[j]));
+            x[i] = s/a[i][i];
+        }
+        x[n] = det;
+        return x;
+    }
+
+    private static class Eliminate extends RecursiveAction
+    {
+        // one Bareiss step for rows [lo, hi) of `a' with pivot row `k'.
+        // rows are independent so large ranges are split across threads.
+        private final BigInteger[][] _a;
+        private final int            _k;
+        private final BigInteger     _prev;
+        private final int            _lo;
+        private final int            _hi;
+        private final Cancellation   _cancel = Cancellation.current();
+
+        Eliminate(BigInteger[][] a, int k, BigInteger prev, int lo, int hi)
+        {
+            _a = a;
+            _k = k;
+            _prev = prev;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        protected void compute()
+        {
+            Cancellation.Entry e = Cancellation.enter(_cancel);
+            try
+            {
+                checkCancelled();
+                eliminate();
+            }
+            finally
+            {
+                e.exit();
+            }
+        }
+
+        private void eliminate()
+        {
+            int n = _a.length;
+            if ((long)(_hi - _lo)*(n - _k) > PARALLEL_ENTRIES && _hi - _lo > 1)
+            {
+                int mid = (_lo + _hi) >>> 1;
+                invokeAll(new Eliminate(_a, _k, _prev, _lo, mid),
+                          new Eliminate(_a, _k, _prev, mid, _hi));
+                return;
+            }
+
+            BigInteger[] ak = _a[_k];
+            BigInteger pk = ak[_k];
+            for (int i = _lo; i < _hi; ++i)
+            {
+                BigInteger[] ai = _a[i];
+                BigInteger aik = ai[_k];
+                for (int j = _k + 1; j <= n; ++j)
+                    ai[j] = pk.multiply(ai[j]).subtract(aik.multiply(ak[j])).divide(_prev);
+                ai[_k] = BigInteger.ZERO;
+            }
+        }
+    }
+
+    private static BigInteger[] solveBig(BigInteger[][] a)
+    {
+        // as solveLong, without overflow.
+        int n = a.length;
+        BigInteger prev = BigInteger.ONE;
+        for (int k = 0; k < n; ++k)
+        {
+            checkCancelled();
+            int p = k;
+            while (p < n && a[p][k].signum() == 0) ++p;
+            if (p == n) return null;
+            BigInteger[] t = a[p]; a[p] = a[k]; a[k] = t;
+
+            Eliminate e = new Eliminate(a, k, prev, k + 1, n);
+            if ((long)(n - k)*(n - k) > PARALLEL_ENTRIES)
+                e.invoke();
+            else
+                e.compute();
+            prev = a[k][k];
+        }
+
+        BigInteger det = prev;
+        BigInteger[] x = new BigInteger[n + 1];
+        for (int i = n - 1; i >= 0; --i)
+        {
+            BigInteger s = det.multiply(a[i][n]);
+            for (int j = i + 1; j < n; ++j)
+                s = s.subtract(a[i][j].multiply(x[j]));
+            x[i] = s.divide(a[i][i]);
+        }
+        x[n] = det;
+        return x;
+    }
+
+    private BigInteger[] solveDense(int[] column)
+    {
+        // solve the current set with variable i in column[i]. return as
+        // for solveLong.
+        int n = _eqs.size();
+        long[][] a = new long[n][n + 1];
+        for (int r = 0; r < n; ++r)
+        {
+            Equation eq = _eqs.get(r);
+            for (int k = 0; k < eq._terms; ++k) a[r][column[eq._var[k]]] = eq._coef[k];
+            a[r][n] = eq._val;
+        }
+
+        try
+        {
+            long[] x = solveLong(a);
+            if (x == null) return null;
+            BigInteger[] bx = new BigInteger[n + 1];
+            for (int i = 0; i <= n; ++i) bx[i] = BigInteger.valueOf(x[i]);
+            return bx;
+        }
+        catch (ArithmeticException e)
+        {
+            // overflowed. start again with big numbers
+        }
+
+        BigInteger[][] b = new BigInteger[n][n + 1];
+        for (int r = 0; r < n; ++r)
+        {
+            Arrays.fill(b[r], BigInteger.ZERO);
+            Equation eq = _eqs.get(r);
+            for (int k = 0; k < eq._terms; ++k)
+                b[r][column[eq._var[k]]] = BigInteger.valueOf(eq._coef[k]);
+            b[r][n] = BigInteger.valueOf(eq._val);
         }
-        return eq;
+        return solveBig(b);
     }
 
-    private String format(double v)
+    private static class Solution
     {
-        // format the output result neatly.
-        int vi = (int)v;
-        return vi == v ? String.valueOf(vi)
-            : String.valueOf(v).replaceFirst("\\.?0+(e|$)", "$1");
+        // a solved set as kept in `_results', in the form of `_order',
+        // `_num' and `_den'. Its arrays are shared and never changed.
+        private final int[]        _order;
+        private final BigInteger[] _num;
+        private final BigInteger[] _den;
+
+        Solution(int[] order, BigInteger[] num, BigInteger[] den)
+        {
+            _order = order;
+            _num = num;
+            _den = den;
+        }
+
+        int bytes()
+        {
+            // rough heap footprint
+            int b = 48 + 4*_order.length;
+            if (_num != null)
+                for (int i = 0; i < _num.length; ++i)
+                    b += 96 + (_num[i].bitLength() + _den[i].bitLength())/8;
+            return b;
+        }
+    }
+
+    private static class DegreeHeap
+    {
+        // binary min-heap of variables keyed by `_count', which the
+        // caller changes and then reports through update().
+        private final int[] _count;
+        private final int[] _heap;
+        private final int[] _at;    // position in `_heap' or -1
+        private int         _size;
+
+        DegreeHeap(int[] count)
+        {
+            int n = count.length;
+            _count = count;
+            _heap = new int[n];
+            _at = new int[n];
+            for (int i = 0; i < n; ++i)
+            {
+                _heap[i] = i;
+                _at[i] = i;
+            }
+            _size = n;
+            for (int i = n/2 - 1; i >= 0; --i) down(i);
+        }
+
+        int pop()
+        {
+            // remove and return the variable of least count
+            int v = _heap[0];
+            _at[v] = -1;
+            if (--_size > 0)
+            {
+                place(_heap[_size], 0);
+                down(0);
+            }
+            return v;
+        }
+
+        void update(int v)
+        {
+            // restore order after the count of `v' changed
+            int i = _at[v];
+            if (i >= 0)
+            {
+                up(i);
+                down(_at[v]);
+            }
+        }
+
+        private void place(int v, int i)
+        {
+            _heap[i] = v;
+            _at[v] = i;
+        }
+
+        private void up(int i)
+        {
+            int v = _heap[i];
+            while (i > 0)
+            {
+                int p = (i - 1)/2;
+                if (_count[_heap[p]] <= _count[v]) break;
+                place(_heap[p], i);
+                i = p;
+            }
+            place(v, i);
+        }
+
+        private void down(int i)
+        {
+            int v = _heap[i];
+            while (true)
+            {
+                int c = 2*i + 1;
+                if (c >= _size) break;
+                if (c + 1 < _size && _count[_heap[c + 1]] < _count[_heap[c]]) ++c;
+                if (_count[_heap[c]] >= _count[v]) break;
+                place(_heap[c], i);
+                i = c;
+            }
+            place(v, i);
+        }
+    }
+
+    private static BigInteger[][] solveSparse(List<Equation> eqs, int n)
+    {
+        // Sparse integer elimination with a minimum degree ordering.
+        //
+        // rows hold only their non-zero terms, so memory grows with the
+        // number of terms rather than n^2. At each step the variable in
+        // fewest remaining rows is eliminated, using the shortest of
+        // those rows as pivot, which keeps fill-in low (Markowitz). Rows
+        // are combined over the integers and divided by the gcd of their
+        // terms to keep numbers small. The solution is then found by back
+        // substitution in reverse order.
+        // return numerators and denominators of the solution by variable,
+        // or null if there is no unique solution.
+        int[][] idx = new int[n][];
+        BigInteger[][] val = new BigInteger[n][];
+        int[] len = new int[n];
+        BigInteger[] rhs = new BigInteger[n];
+
+        // rows containing each variable, and how many of them are not yet
+        // pivots. the lists may hold rows that no longer contain it.
+        int[][] rows = new int[n][4];
+        int[] rowc = new int[n];
+        int[] count = new int[n];
+
+        for (int r = 0; r < n; ++r)
+        {
+            Equation eq = eqs.get(r);
+            idx[r] = new int[eq._terms];
+            val[r] = new BigInteger[eq._terms];
+            for (int k = 0; k < eq._terms; ++k)
+            {
+                if (eq._coef[k] == 0) continue;
+                int v = eq._var[k];
+                idx[r][len[r]] = v;
+                val[r][len[r]++] = BigInteger.valueOf(eq._coef[k]);
+                addRow(rows, rowc, v, r);
+                ++count[v];
+            }
+            rhs[r] = BigInteger.valueOf(eq._val);
+        }
+
+        DegreeHeap heap = new DegreeHeap(count);
+        boolean[] done = new boolean[n];
+        int[] pivotRow = new int[n];
+        int[] pivotVar = new int[n];
+
+        // scratch for combining rows, indexed by variable
+        BigInteger[] acc = new BigInteger[n];
+        int[] mark = new int[n];
+        int[] seen = new int[n];
+        int[] touched = new int[n];
+        Arrays.fill(mark, -1);
+        Arrays.fill(seen, -1);
+        int stamp = 0;
+
+        for (int step = 0; step < n; ++step)
+        {
+            checkCancelled();
+            int c = heap.pop();
+            if (count[c] == 0) return null;
+
+            // choose the shortest row containing `c'
+            int r = -1;
+            for (int k = 0; k < rowc[c]; ++k)
+            {
+                int i = rows[c][k];
+                if (!done[i] && find(idx[i], len[i], c) >= 0 && (r < 0 || len[i] < len[r]))
+                    r = i;
+            }
+            done[r] = true;
+            pivotRow[step] = r;
+            pivotVar[step] = c;
+            for (int k = 0; k < len[r]; ++k)
+            {
+                int v = idx[r][k];
+                --count[v];
+                heap.update(v);
+            }
+
+            // eliminate `c' from the other rows containing it
+            BigInteger p = val[r][find(idx[r], len[r], c)];
+            for (int q = 0; q < rowc[c]; ++q)
+            {
+                int i = rows[c][q];
+                if (done[i] || seen[i] == step) continue;
+                seen[i] = step;
+                int kc = find(idx[i], len[i], c);
+                if (kc < 0) continue;
+
+                // row i = pm*row i - am*row r, where c cancels
+                BigInteger a = val[i][kc];
+                BigInteger g = p.gcd(a);
+                BigInteger pm = p.divide(g);
+                BigInteger am = a.divide(g);
+
+                ++stamp;
+                int t = 0;
+                for (int k = 0; k < len[i]; ++k)
+                {
+                    int v = idx[i][k];
+                    acc[v] = val[i][k].multiply(pm);
+                    mark[v] = stamp;
+                    touched[t++] = v;
+                }
+                for (int k = 0; k < len[r]; ++k)
+                {
+                    int v = idx[r][k];
+                    BigInteger d = val[r][k].multiply(am);
+                    if (mark[v] == stamp)
+                        acc[v] = acc[v].subtract(d);
+                    else
+                    {
+                        // fill-in
+                        acc[v] = d.negate();
+                        mark[v] = stamp;
+                        touched[t++] = v;
+                        addRow(rows, rowc, v, i);
+                        ++count[v];
+                        heap.update(v);
+                    }
+                }
+                rhs[i] = rhs[i].multiply(pm).subtract(rhs[r].multiply(am));
+
+                // gather the non-zero terms back into row i
+                if (idx[i].length < t)
+                {
+                    idx[i] = new int[t];
+                    val[i] = new BigInteger[t];
+                }
+                int m = 0;
+                BigInteger h = rhs[i];
+                for (int k = 0; k < t; ++k)
+                {
+                    int v = touched[k];
+                    if (acc[v].signum() == 0)
+                    {
+                        --count[v];
+                        heap.update(v);
+                        continue;
+                    }
+                    idx[i][m] = v;
+                    val[i][m++] = acc[v];
+                    h = h.gcd(acc[v]);
+                    acc[v] = null;
+                }
+                len[i] = m;
+
+                if (h.compareTo(BigInteger.ONE) > 0)
+                {
+                    for (int k = 0; k < m; ++k) val[i][k] = val[i][k].divide(h);
+                    rhs[i] = rhs[i].divide(h);
+                }
+            }
+        }
+
+        // back substitute. the other variables of each pivot row were
+        // pivoted later, so are already known.
+        BigInteger[] num = new BigInteger[n];
+        BigInteger[] den = new BigInteger[n];
+        for (int step = n - 1; step >= 0; --step)
+        {
+            int r = pivotRow[step];
+            int c = pivotVar[step];
+            BigInteger sn = rhs[r];
+            BigInteger sd = BigInteger.ONE;
+            BigInteger a = null;
+            for (int k = 0; k < len[r]; ++k)
+            {
+                int v = idx[r][k];
+                if (v == c)
+                {
+                    a = val[r][k];
+                    continue;
+                }
+                // s -= coefficient * x[v]. the denominators are mostly
+                // the same, the determinant, so avoid a gcd when they are.
+                BigInteger t = val[r][k].multiply(num[v]);
+                if (sd.equals(den[v]))
+                    sn = sn.subtract(t);
+                else
+                {
+                    BigInteger g = sd.gcd(den[v]);
+                    sn = sn.multiply(den[v].divide(g)).subtract(t.multiply(sd.divide(g)));
+                    sd = sd.divide(g).multiply(den[v]);
+                }
+            }
+
+            // x[c] = s/a in lowest terms, positive denominator
+            sd = sd.multiply(a);
+            BigInteger g = sn.gcd(sd);
+            if (sd.signum() < 0) g = g.negate();
+            num[c] = sn.divide(g);
+            den[c] = sd.divide(g);
+        }
+        return new BigInteger[][] { num, den };
+    }
+
+    private static void addRow(int[][] rows, int[] rowc, int v, int r)
+    {
+        // note that row `r' contains variable `v'
+        if (rowc[v] == rows[v].length) rows[v] = Arrays.copyOf(rows[v], 2*rowc[v]);
+        rows[v][rowc[v]++] = r;
+    }
+
+    private static int find(int[] idx, int len, int v)
+    {
+        // return the position of variable `v' in a row, or -1
+        for (int k = 0; k < len; ++k)
+            if (idx[k] == v) return k;
+        return -1;
+    }
+
+    private BigInteger[][] solveExact(int[] column)
+    {
+        // solve the current set with variable i in column[i]. return the
+        // numerators and denominators of the solution by column, or null
+        // if there is no unique solution.
+        //
+        // sets with few terms relative to their size are solved sparsely.
+        int n = _eqs.size();
+        long terms = 0;
+        for (Equation eq : _eqs) terms += eq._terms;
+
+        if (n >= SPARSE_MIN && terms*SPARSE_RATIO < (long)n*n)
+        {
+            BigInteger[][] x = solveSparse(_eqs, n);
+            if (x == null) return null;
+            BigInteger[][] y = new BigInteger[2][n];
+            for (int v = 0; v < n; ++v)
+            {
+                y[0][column[v]] = x[0][v];
+                y[1][column[v]] = x[1][v];
+            }
+            return y;
+        }
+
+        BigInteger[] x = solveDense(column);
+        if (x == null) return null;
+        BigInteger[] den = new BigInteger[n];
+        Arrays.fill(den, x[n]);
+        return new BigInteger[][] { Arrays.copyOf(x, n), den };
+    }
+
+    private void solveSet()
+    {
+        // solve the current set of equations into `_order', `_num' and
+        // `_den', leaving `_num' null if there is no unique solution.
+        // Sets solved before are taken from `_results'.
+        if (!_results.enabled())
+        {
+            solveUncached();
+            return;
+        }
+
+        Solution r = _results.get(_key);
+        if (r == null)
+        {
+            solveUncached();
+            r = new Solution(_order, _num, _den);
+            _results.put(_key, r, r.bytes());
+        }
+        _order = r._order;
+        _num = r._num;
+        _den = r._den;
+    }
+
+    public static void initResults(Map<String, String> params)
+    {
+        // size the result cache from the solver parameters.
+        _results.init(params);
+    }
+
+    private void solveUncached()
+    {
+        int[] order = order();
+        int n = order.length;
+        int[] column = new int[n];
+        for (int i = 0; i < n; ++i) column[order[i]] = i;
+        _order = order;
+        _num = null;
+
+        // if there are as many independent equations as variables, there
+        // is a solution. Otherwise the equations are linearly dependent
+        // or too many and no unique solution exists.
+        BigInteger[][] x = _eqs.size() == n ? solveExact(column) : null;
+        if (x == null) return;
+
+        // put each value in lowest terms
+        _num = new BigInteger[n];
+        _den = new BigInteger[n];
+        for (int i = 0; i < n; ++i)
+        {
+            BigInteger g = x[0][i].gcd(x[1][i]);
+            if (x[1][i].signum() < 0) g = g.negate();
+            _num[i] = x[0][i].divide(g);
+            _den[i] = x[1][i].divide(g);
+        }
+    }
+
+    private boolean solvePair()
+    {
+        // solve a set of two equations in two variables by Cramer's rule
+        // in longs and append the solution. Return false, having
+        // appended nothing, if the set is singular or the arithmetic
+        // would overflow, leaving it to solveSet.
+        if (_eqs.size() != 2 || _names.size() != 2) return false;
+
+        // variables in name order
+        int u = compareNames(_names.get(0), _names.get(1)) <= 0 ? 0 : 1;
+        int v = 1 - u;
+        Equation p = _eqs.get(0);
+        Equation q = _eqs.get(1);
+        long a = p.coefficient(u), b = p.coefficient(v), c = p._val;
+        long d = q.coefficient(u), e = q.coefficient(v), f = q._val;
+        try
+        {
+            long det = Math.subtractExact(Math.multiplyExact(a, e), Math.multiplyExact(b, d));
+            if (det == 0) return false;
+            long x = Math.subtractExact(Math.multiplyExact(c, e), Math.multiplyExact(b, f));
+            long y = Math.subtractExact(Math.multiplyExact(a, f), Math.multiplyExact(c, d));
+
+            // the denominator is positive
+            if (det < 0)
+            {
+                det = Math.negateExact(det);
+                x = Math.negateExact(x);
+                y = Math.negateExact(y);
+            }
+
+            // in lowest terms, unless whole
+            long gx = Math.floorMod(x, det) == 0 ? det : gcd(x, det);
+            long gy = Math.floorMod(y, det) == 0 ? det : gcd(y, det);
+            appendValue(_names.get(u), x/gx, det/gx);
+            results.append(' ');
+            appendValue(_names.get(v), y/gy, det/gy);
+            results.append('\n');
+            return true;
+        }
+        catch (ArithmeticException ex)
+        {
+            return false;
+        }
+    }
+
+    private static long gcd(long a, long b)
+    {
+        // greatest common divisor of `a' and positive `b'
+        while (a != 0)
+        {
+            long t = b % a;
+            b = a;
+            a = t;
+        }
+        return Math.abs(b);
+    }
+
+    private void appendValue(String name, long num, long den)
+    {
+        results.append(name).append('=').append(num);
+        if (den != 1) results.append('/').append(den);
+    }
+
+    private void solve()
+    {
+        // solve the current set of equations, then start a new set.
+        // Pairs are solved in longs when they can be.
+        if (solvePair())
+        {
+            reset();
+            return;
+        }
+
+        solveSet();
+        if (_num != null)
+        {
+            // format the solution
+            for (int i = 0; i < _num.length; ++i)
+            {
+                if (i > 0) results.append(' ');
+                results.append(name(i)).append('=').append(_num[i]);
+                if (!_den[i].equals(BigInteger.ONE)) results.append('/').append(_den[i]);
+            }
+            results.append('\n');
+        }
+        else
+        {
+            results.append("No unique solution for");
+            for (Equation eq : _eqs) results.append(", ").append(eq.toString(_order));
+            results.append('\n');
+        }
+        reset();
+    }
+
+    private void checkCount() throws MalformedInputException
+    {
+        // a set needs at least as many equations as variables.
+        int n = _names.size();
+        if (_eqs.size() < n)
+            throw new MalformedInputException("require " +
+                (n == 2 ? "two" : String.valueOf(n)) + " equations");
+    }
+
+    public void clear()
+    {
+        // start a new set of equations. With equation and
+        // solveEquations, for callers that read records of their own, as
+        // the JSON API.
+        reset();
+    }
+
+    public void equation(char[] c, int s, int e) throws MalformedInputException
+    {
+        // add the equation in c[s..e) to the current set.
+        checkCancelled();
+        while (s < e && c[s] <= ' ') ++s;
+        while (e > s && c[e-1] <= ' ') --e;
+
+        char[] in = _in;
+        _in = c;
+        _start = s;
+        _end = e;
+        try
+        {
+            parseEquation();
+        }
+        finally
+        {
+            _in = in;
+        }
+    }
+
+    public boolean solveEquations() throws MalformedInputException
+    {
+        // solve the current set. Return false if there is no unique
+        // solution. Otherwise the value of name(i) is numerator(i) over
+        // denominator(i), in lowest terms, for i below unknowns().
+        if (_eqs.isEmpty()) throw new MalformedInputException("no equations");
+        checkCount();
+        solveSet();
+        return _num != null;
+    }
+
+    public int unknowns()
+    {
+        return _order.length;
+    }
+
+    public String name(int i)
+    {
+        return _names.get(_order[i]);
+    }
+
+    public BigInteger numerator(int i)
+    {
+        return _num[i];
+    }
+
+    public BigInteger denominator(int i)
+    {
+        return _den[i];
+    }
+
+    private boolean isPair()
+    {
+        // true if the current set has no variables other than x and y.
+        for (String name : _names)
+            if (!name.equals("x") && !name.equals("y")) return false;
+        return true;
+    }
+
+    private void reset()
+    {
+        // forget the current set of equations, keeping them for reuse.
+        for (int i = 0; i < _eqs.size(); ++i) _spare.add(_eqs.get(i));
+        _eqs.clear();
+        _names.clear();
+        _key.clear();
+        ++_set;
+    }
+
+    private boolean nextLine(Reader in)
+    {
+        // find the next line of input in `_in' without making a string.
+        // Lines end with \n, \r or \r\n as for BufferedReader.readLine.
+        // return false at the end of the input or if it cannot be read.
+        int p = _ip;
+        for (;;)
+        {
+            if (_skipLF && p < _ie)
+            {
+                // the \n of a \r\n pair
+                if (_in[p] == '\n') _ip = ++p;
+                _skipLF = false;
+            }
+
+            while (p < _ie && _in[p] != '\n' && _in[p] != '\r') ++p;
+            if (p < _ie)
+            {
+                _ls = _ip;
+                _le = p;
+                _skipLF = _in[p] == '\r';
+                _ip = p + 1;
+                return true;
+            }
+
+            if (_eof)
+            {
+                // last line has no line end
+                if (_ip == _ie) return false;
+                _ls = _ip;
+                _le = _ie;
+                _ip = _ie;
+                return true;
+            }
+
+            // move the partial line to the front and read some more,
+            // growing the buffer for long lines.
+            int n = _ie - _ip;
+            if (n == _in.length) _in = Arrays.copyOf(_in, 2*n);
+            else System.arraycopy(_in, _ip, _in, 0, n);
+            _ip = 0;
+            _ie = n;
+            p = n;
+            try
+            {
+                int r = in.read(_in, _ie, _in.length - _ie);
+                if (r < 0) _eof = true;
+                else _ie += r;
+            }
+            catch (IOException e)
+            {
+                results.append("error reading input\n");
+                return false;
+            }
+        }
+    }
+
+    private String readLine(BufferedReader in)
+    {
+        // return the next input line, or null at the end of the input
+        // or if it cannot be read.
+        try
+        {
+            return in.readLine();
+        }
+        catch (IOException e)
+        {
+            results.append("error reading input\n");
+            return null;
+        }
+    }
+
+    private void flush(Writer out) throws IOException
+    {
+        // pass any pending results on to `out' and empty the buffer,
+        // copying through `_out' rather than a new string.
+        int n = results.length();
+        if (n > _out.length) _out = new char[Math.max(n, 2*_out.length)];
+        results.getChars(0, n, _out, 0);
+        out.write(_out, 0, n);
+        results.setLength(0);
     }
 
     public String calculate(String arg)
@@ -164,88 +1241,199 @@ public class Equations
         // receive input data from web page. Perform calculation and
         // return result to web page as a string.
         
-        BufferedReader in = new BufferedReader(new StringReader(arg));
+        StringWriter out = new StringWriter();
         try
         {
-            Equation eqs[] = new Equation[2];
-            int eqc = 0;
-            String line;
-            while ((line = in.readLine()) != null)
+            calculate(new StringReader(arg), out);
+        }
+        catch (IOException e)
+        {
+            // cannot happen writing to a string
+        }
+
+        // return results to web page.
+        return out.toString();
+    }
+
+    public void calculate(Reader arg, Writer out) throws IOException
+    {
+        // streaming version. Read input from `arg' and write each result
+        // line to `out' as soon as it is produced, so that memory use does
+        // not depend on the size of the input. Lines are parsed in place
+        // so that reading equations makes no garbage.
+        
+        // start with an empty input buffer
+        _ip = _ie = 0;
+        _eof = false;
+        _skipLF = false;
+
+        while (nextLine(arg))
+        {
+            checkCancelled();
+
+            // trim the line
+            _start = _ls;
+            _end = _le;
+            while (_start < _end && _in[_start] <= ' ') ++_start;
+            while (_end > _start && _in[_end-1] <= ' ') --_end;
+
+            int len = _end - _start;
+            boolean hash = len > 0 && _in[_start] == '#';
+            if (hash && len > 1 && _in[_start+1] == '#') break;
+            if (len > 1 && _in[_start] == '/' && _in[_start+1] == '/')
+                continue; // skip line comments
+            try
             {
-                line = line.trim(); 
-                if (line.startsWith("##")) break;
-                if (line.startsWith("//")) continue; // skip line comments
-                try
+                if (len > 0) // skip blank lines
                 {
-                    if (line.length() > 0) // skip blank lines
+                    if (hash)
                     {
-                        if (line.startsWith("#"))
-                        {
-                            if (eqc > 0)
-                                throw new MalformedInputException("require two equations");
-                            eqc = 0;
-                            continue;
-                        }
-                        eqs[eqc] = parseEquation(line);
-                        if (++eqc == 2)
+                        // end of a set. solve it if there are enough
+                        // equations.
+                        if (!_eqs.isEmpty())
                         {
-                            // we have two equations. solve them.
-                            eqc = 0;
-
-                            // extract values
-                            long a = eqs[0]._cx;
-                            long b = eqs[0]._cy;
-                            long u = eqs[0]._val;
-                            long c = eqs[1]._cx;
-                            long d = eqs[1]._cy;
-                            long v = eqs[1]._val;
-
-                            // wish to solve:
-                            // aX + bY = u
-                            // cX + dY = v.
-
-                            double x, y;
-                            double det = (double)(a*d - b*c);
-
-                            // if the determinant is non-zero, there is a 
-                            // solution. Otherwise the equations are linearly
-                            // dependent and no unique solution exists.
-                            if (det != 0)
-                            {
-                                x = (d*u - b*v)/det;
-                                y = (a*v - c*u)/det;
-                                
-                                // format the solution
-                                results.append("x=").append(format(x)).append(" y=").append(format(y)).append('\n');
-                            
-                            }
-                            else
-                            {
-                                results.append("No unique solution for, ").append(eqs[0].toString()).append(", ").
-                                    append(eqs[1].toString()).append('\n');
-                            }
-                            
+                            checkCount();
+                            solve();
                         }
+                        continue;
                     }
+                    parseEquation();
+
+                    // equations in just x and y are solved in pairs, as in
+                    // the original format. other sets wait for their `#'.
+                    if (_eqs.size() == 2 && isPair()) solve();
                 }
-                catch (MalformedInputException e)
+            }
+            catch (MalformedInputException e)
+            {
+                reset();
+                results.append(e.getMessage()).append('\n');
+            }
+            catch (CancellationException e)
+            {
+                reset();
+                throw e;
+            }
+            catch (Exception e)
+            {
+                reset();
+                results.append("malformed input: \"").append(_in, _start, len).append("\"\n");
+            }
+            flush(out);
+        }
+        flush(out);
+    }
+
+    private static void checkCancelled()
+    {
+        // give up if this thread has been interrupted, or the pool task
+        // it is running cancelled, as when the request being served has
+        // run out of time or its client has gone away.
+        if (Thread.currentThread().isInterrupted() || Cancellation.cancelled())
+            throw new CancellationException();
+    }
+
+    private static String result(Future<String> f) throws IOException
+    {
+        // wait for a batch to finish and return its results.
+        try
+        {
+            return f.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof CancellationException)
+                throw (CancellationException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Callable<String> task(final String batch, final Cancellation cancel)
+    {
+        // solve `batch' with a Equations of its own, under `cancel'.
+        return new Callable<String>()
+        {
+            public String call()
+            {
+                Cancellation.Entry e = Cancellation.enter(cancel);
+                try
                 {
-                    eqc = 0;
-                    results.append(e.getMessage()).append('\n');
+                    return new Equations().calculate(batch);
                 }
-                catch (Exception e)
+                finally
                 {
-                    eqc = 0;
-                    results.append("malformed input: \"").append(line).append("\"\n");
+                    e.exit();
                 }
             }
+        };
+    }
+
+    public void calculateParallel(Reader arg, Writer out) throws IOException
+    {
+        // parallel version of calculate. The input is cut into batches of
+        // about BATCH_LINES lines or BATCH_CHARS characters, ending at a
+        // `#' line, each solved by a separate Equations in the common pool
+        // so that no solver state is shared. Results are written in input
+        // order and match calculate exactly.
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+        int window = 2*pool.getParallelism();
+        Cancellation cancel = Cancellation.child();
+
+        try
+        {
+            BufferedReader in = new BufferedReader(arg);
+            StringBuilder batch = new StringBuilder();
+            int n = 0;
+            String line;
+            while ((line = readLine(in)) != null)
+            {
+                checkCancelled();
+                String t = line.trim();
+                if (t.startsWith("##")) break;
+                batch.append(line).append('\n');
+                ++n;
+                boolean full = n >= BATCH_LINES || batch.length() >= BATCH_CHARS;
+                if (full && !t.startsWith("#")
+                    && (n >= BATCH_LIMIT*BATCH_LINES || batch.length() >= BATCH_LIMIT*BATCH_CHARS))
+                {
+                    // no set boundary in sight. finish the batches in
+                    // flight, then solve this one and the rest of the input
+                    // here. The set being read carries over from one
+                    // calculate to the next.
+                    while (!pending.isEmpty()) out.write(result(pending.remove()));
+                    calculate(new StringReader(batch.toString()), out);
+                    batch.setLength(0);
+                    n = 0;
+                    calculate(in, out);
+                    break;
+                }
+                if (full && t.startsWith("#"))
+                {
+                    // keep a bounded number of batches in flight
+                    if (pending.size() >= window) out.write(result(pending.remove()));
+                    pending.add(pool.submit(task(batch.toString(), cancel)));
+                    batch.setLength(0);
+                    n = 0;
+                }
+            }
+            if (n > 0) pending.add(pool.submit(task(batch.toString(), cancel)));
+
+            while (!pending.isEmpty()) out.write(result(pending.remove()));
         }
-        catch (IOException e)
+        finally
         {
-            results.append("error reading input\n");
+            // if we were interrupted or the output failed, abandon the
+            // batches not yet written, stopping those already running.
+            if (!pending.isEmpty()) cancel.cancel();
+            for (Future<String> f : pending) f.cancel(false);
         }
-
-        // return results to web page.
-        return results.toString();
+        flush(out);
     }
 }
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) Voidware ltd. 2015
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS," WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ * contact@voidware.com
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Question 3, simultaneous equations, as a Solver.
+ */
+public class EquationsSolver implements Solver
+{
+    private final Equations _eq = new Equations();
+
+    public String name()
+    {
+        return "equations";
+    }
+
+    public String title()
+    {
+        return "Question 3";
+    }
+
+    public void init(Map<String, String> params)
+    {
+        // sets solved before are answered from a cache of
+        // `equationsResultCacheBytes'
+        Equations.initResults(params);
+    }
+
+    public Solver create()
+    {
+        return new EquationsSolver();
+    }
+
+    public String endMark()
+    {
+        return "##";
+    }
+
+    public String recordMark()
+    {
+        // each set ends with a `#'
+        return "#";
+    }
+
+    public void setTrace(StringBuilder trace)
+    {
+    }
+
+    public void calculate(Reader in, Writer out) throws IOException
+    {
+        _eq.calculate(in, out);
+    }
+
+    public void calculateParallel(Reader in, Writer out) throws IOException
+    {
+        _eq.calculateParallel(in, out);
+    }
+
+    public void solve(JsonReader in, int t, JsonWriter out) throws IOException
+    {
+        // a record is an array of equations solved as one set, eg
+        // ["4x+3y=24","5x+y=19"]. The result is an object of the value
+        // of each variable, eg {"x":3,"y":4}. Values that are not whole
+        // are strings, eg "3/2".
+        if (t != JsonReader.BEGIN_ARRAY)
+        {
+            in.skip(t);
+            out.error("expected an array of equations");
+            return;
+        }
+
+        // read all the equations, keeping the first error
+        String error = null;
+        _eq.clear();
+        while ((t = in.next()) != JsonReader.END_ARRAY)
+        {
+            if (error != null || t != JsonReader.STRING)
+            {
+                in.skip(t);
+                if (error == null) error = "expected an array of equations";
+                continue;
+            }
+            try
+            {
+                _eq.equation(in.text(), 0, in.length());
+            }
+            catch (Equations.MalformedInputException e)
+            {
+                error = e.getMessage();
+            }
+            catch (CancellationException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                error = "malformed input: \"" + new String(in.text(), 0, in.length()) + "\"";
+            }
+        }
+
+        try
+        {
+            if (error == null && !_eq.solveEquations()) error = "no unique solution";
+        }
+        catch (Equations.MalformedInputException e)
+        {
+            error = e.getMessage();
+        }
+        if (error != null)
+        {
+            out.error(error);
+            return;
+        }
+
+        out.beginObject();
+        for (int i = 0; i < _eq.unknowns(); ++i)
+        {
+            out.name(_eq.name(i));
+            BigInteger num = _eq.numerator(i);
+            BigInteger den = _eq.denominator(i);
+            if (!den.equals(BigInteger.ONE))
+                out.value(num + "/" + den);
+            else if (num.bitLength() < 64)
+                out.value(num.longValue());
+            else
+                out.rawValue().write(num.toString());
+        }
+        out.endObject();
+    }
+}